@@ -0,0 +1,410 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import koekoeke.CuckooHashingSet;
+import koekoeke.Footprint;
+import koekoeke.HashingStatistics;
+import koekoeke.MemoryFootprint;
+
+/**
+ * Set that picks its representation from the observed workload. 
+ * Elements are stored either in a {@link LinearProbing} table, which is faster 
+ * for insertion-dominated streams, or in a {@link CuckooHashingSet}, which 
+ * has at most two probes per lookup and supports deletion. 
+ * 
+ * The operation mix, the miss rate and the probe lengths of the current 
+ * engine are sampled over windows of at least as many operations as elements, 
+ * so that the O(<var>n</var>) cost of a migration is amortized over the window. 
+ * Insertions count only if they add a new element; other insertions are lookups.
+ * A window suggests linear probing when insertions dominate and deletions are rare, 
+ * and cuckoo hashing when deletions are frequent, or when lookups dominate 
+ * and linear probing needs more probes per operation than cuckoo hashing at worst.  
+ * The set migrates at the first insertion or deletion after two consecutive windows agree 
+ * (lookups never pay for a migration), or earlier, 
+ * when the current engine is about to grow its table (and to move all elements anyway) 
+ * while the last window suggested the other engine. 
+ * 
+ * Linear probing does not support deletion: in that mode, deleted elements stay 
+ * in the table, and are recorded in a small cuckoo set of tombstones. When there are too many 
+ * tombstones, the elements are moved into a new table of the engine that the windows suggest. 
+ * Null elements force an immediate migration to cuckoo hashing. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class AdaptiveSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint
+{
+    /**
+     * Minimum number of operations in a sampling window.
+     */
+    private static final int MIN_WINDOW = 1<<14;
+    /**
+     * Excess of the mean probe length of linear probing over the expected probes of cuckoo hashing 
+     * above which lookup-heavy workloads move to cuckoo hashing.
+     */
+    private static final double PROBE_MARGIN = 0.5;
+    /**
+     * Number of consecutive windows that must agree before a migration.
+     */
+    private static final int PATIENCE = 2;
+    /**
+     * Deletions are rare if there are at least this many times more insertions.
+     */
+    private static final int RARE_DELETIONS = 8;
+    /**
+     * Tombstones are purged when they are more than this fraction of the linear probing table's elements...
+     */
+    private static final double MAX_TOMBSTONE_FRACTION = 0.25;
+    /**
+     * ... and more than this many.
+     */
+    private static final int MIN_TOMBSTONE_PURGE = 64;
+    
+    /**
+     * Representations.
+     */
+    public enum Engine 
+    {
+        LINEAR, CUCKOO;
+    }
+    
+    /**
+     * Instantiation with linear probing, which is the better start for a set being filled.
+     */
+    public AdaptiveSet()
+    {
+        this.engine = Engine.LINEAR;
+        this.elements = new LinearProbing();
+        this.probe_sample = ((LinearProbing) elements).enableStatistics();
+    }
+    
+    private Engine engine;
+    private Set<Object> elements;
+    /**
+     * Deleted elements still in the linear probing table; null if none.
+     */
+    private CuckooHashingSet tombstones = null;
+    /**
+     * Probe lengths in the current window; only for linear probing.
+     */
+    private HashingStatistics probe_sample;
+    
+    private int window_ops = 0;
+    private int window_adds = 0;
+    private int window_lookups = 0;
+    private int window_misses = 0;
+    private int window_removes = 0;
+    /**
+     * Engine suggested by the preceding windows, and for how many windows.
+     */
+    private Engine suggested = null;
+    private int num_suggestions = 0;
+    /**
+     * Engine to migrate to at the next insertion or deletion; null if none.
+     */
+    private Engine pending_migration = null;
+    private int num_migrations = 0;
+    
+    /**
+     * Current representation.
+     * 
+     * @return which engine holds the elements now
+     */
+    public Engine engine()
+    {
+        return engine;
+    }
+    
+    /**
+     * Number of migrations so far. 
+     * 
+     * @return count of representation changes
+     */
+    public int getMigrationCount()
+    {
+        return num_migrations;
+    }
+    
+    @Override
+    public int size()
+    {
+        return elements.size() - (tombstones == null ? 0 : tombstones.size());
+    }
+    
+    /**
+     * Search without accounting.
+     */
+    private boolean isElement(Object o)
+    {
+        return elements.contains(o) && (tombstones == null || !tombstones.contains(o));
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        boolean found = isElement(o);
+        window_lookups++;
+        if (!found) window_misses++;
+        countOperation();
+        return found;
+    }
+    
+    /**
+     * Whether the engine grows its table on the next insertion.
+     */
+    private boolean growsOnNextInsertion()
+    {
+        if (engine == Engine.LINEAR)
+            return ((LinearProbing) elements).growsOnNextInsertion();
+        else
+            return ((CuckooHashingSet) elements).growsOnNextInsertion();
+    }
+    
+    @Override
+    public boolean add(Object o)
+    {
+        if (pending_migration != null) migrate(pending_migration);
+        if (o == null && engine == Engine.LINEAR) migrate(Engine.CUCKOO);
+        boolean added;
+        if (tombstones != null && tombstones.remove(o))
+        {
+            // still in the table 
+            added = true;
+        } else
+        {
+            if (suggested != null && suggested != engine && growsOnNextInsertion() && !elements.contains(o))
+            {
+                // resize time: move to the suggested engine instead of growing this one
+                rebuild(suggested, 2 * size() + 1);
+            }
+            added = elements.add(o);
+        }
+        if (added)
+            window_adds++;
+        else
+            window_lookups++;
+        countOperation();
+        return added;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        if (pending_migration != null) migrate(pending_migration);
+        boolean removed;
+        if (engine == Engine.LINEAR)
+        {
+            removed = isElement(o);
+            if (removed)
+            {
+                if (tombstones == null) tombstones = new CuckooHashingSet();
+                tombstones.add(o);
+            }
+        } else
+            removed = elements.remove(o);
+        if (removed)
+            window_removes++;
+        else
+        {
+            window_lookups++;
+            window_misses++;
+        }
+        countOperation();
+        if (tombstones != null && tombstones.size() > MIN_TOMBSTONE_PURGE 
+                && tombstones.size() > MAX_TOMBSTONE_FRACTION * elements.size())
+        {
+            rebuild(suggested == null ? engine : suggested, size());
+        }
+        return removed;
+    }
+    
+    @Override
+    public void clear()
+    {
+        elements.clear();
+        tombstones = null;
+        // the old workload says nothing about the new one
+        window_ops = window_adds = window_lookups = window_misses = window_removes = 0;
+        if (probe_sample != null) probe_sample.reset();
+        suggested = null;
+        num_suggestions = 0;
+        pending_migration = null;
+    }
+    
+    @Override
+    public Iterator<Object> iterator()
+    {
+        if (tombstones == null)
+            return elements.iterator();
+        return new Iterator<Object>()
+        {
+            private final Iterator<Object> all = elements.iterator();
+            private boolean has_next;
+            private Object next;
+            {
+                advance();
+            }
+            
+            private void advance()
+            {
+                has_next = false;
+                while (!has_next && all.hasNext())
+                {
+                    next = all.next();
+                    has_next = !tombstones.contains(next);
+                }
+            }
+            
+            @Override
+            public boolean hasNext()
+            {
+                return has_next;
+            }
+            
+            @Override
+            public Object next()
+            {
+                if (!has_next) throw new NoSuchElementException();
+                Object x = next;
+                advance();
+                return x;
+            }
+        };
+    }
+    
+    /**
+     * Memory usage of the current engine, and the tombstones, if any. 
+     * Keys of deleted elements are still referenced from the table, and counted.
+     * 
+     * @return footprint of the set
+     */
+    @Override
+    public Footprint footprint()
+    {
+        Footprint F = ((MemoryFootprint) elements).footprint();
+        if (tombstones == null) return F;
+        Footprint T = tombstones.footprint();
+        return new Footprint(F.array_bytes + T.array_bytes, F.key_bytes, F.occupied_slots - tombstones.size(), F.total_slots + T.total_slots);
+    }
+    
+    private void countOperation()
+    {
+        if (++window_ops >= Math.max(MIN_WINDOW, elements.size()))
+            closeWindow();
+    }
+    
+    /**
+     * Decides on the engine from the finished window, and starts a new one. 
+     */
+    private void closeWindow()
+    {
+        Engine best = engine;
+        boolean rare_deletions = RARE_DELETIONS * window_removes <= window_adds;
+        if (rare_deletions && 2 * window_adds > window_ops)
+            best = Engine.LINEAR;
+        else if (!rare_deletions)
+            best = Engine.CUCKOO;
+        else if (2 * window_lookups > window_ops)
+        {
+            // cuckoo lookups probe 1.5 cells on average for hits, and 2 for misses
+            double cuckoo_probes = (1.5 * (window_lookups - window_misses) + 2.0 * window_misses) / window_lookups;
+            if (engine == Engine.LINEAR && probe_sample.getMeanProbeLength() > cuckoo_probes + PROBE_MARGIN)
+                best = Engine.CUCKOO;
+        }
+        
+        if (best == engine)
+        {
+            suggested = null;
+            num_suggestions = 0;
+            pending_migration = null;
+        } else if (best == suggested)
+        {
+            if (++num_suggestions >= PATIENCE)
+                pending_migration = best; // the window may close in a lookup: migrate at the next update
+        } else
+        {
+            suggested = best;
+            num_suggestions = 1;
+        }
+        window_ops = window_adds = window_lookups = window_misses = window_removes = 0;
+        if (probe_sample != null) probe_sample.reset();
+    }
+    
+    /**
+     * Moves the elements into a new representation, sized for the current elements. 
+     * Also usable directly, for instance before a bulk load with a known workload. 
+     * Sets with a null element stay with cuckoo hashing.
+     * 
+     * @param target engine to use from now on
+     */
+    public void migrate(Engine target)
+    {
+        if (target == engine) 
+        {
+            suggested = null;
+            num_suggestions = 0;
+            pending_migration = null;
+            return;
+        }
+        rebuild(target, size());
+    }
+    
+    /**
+     * Moves the live elements into a new table, which may have the same engine as now. 
+     * Sets with a null element stay with cuckoo hashing.
+     * 
+     * @param target engine to use from now on
+     * @param expected_size number of elements to make room for
+     */
+    private void rebuild(Engine target, int expected_size)
+    {
+        suggested = null;
+        num_suggestions = 0;
+        pending_migration = null;
+        if (target == Engine.LINEAR && engine == Engine.CUCKOO && elements.contains(null)) return;
+        Set<Object> moved;
+        if (target == Engine.CUCKOO)
+        {
+            moved = CuckooHashingSet.withExpectedSize(Math.max(expected_size, 1));
+            probe_sample = null;
+        } else
+        {
+            LinearProbing table = new LinearProbing(2 * expected_size + 2);
+            probe_sample = table.enableStatistics();
+            moved = table;
+        }
+        if (tombstones == null)
+            moved.addAll(elements);
+        else
+            for (Object x: this) moved.add(x);
+        this.elements = moved;
+        this.tombstones = null;
+        if (target != engine) num_migrations++;
+        this.engine = target;
+    }
+}
@@ -0,0 +1,501 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Benchmark over a matrix of engines, expected sizes and dispersions, 
+ * with results kept in a CSV file and compared against a baseline file. 
+ * Dispersion is given either as variance-to-mean ratio (<code>-dispersions</code>), 
+ * or as coefficient of variation (<code>-cv</code>), as in {@link SetTester}; 
+ * both axes are run if both are given. 
+ * 
+ * Every cell of the matrix is measured in fresh virtual machines (with the same 
+ * options as this one), so that the JIT profile of one engine does not bias the next, 
+ * and repeated a few times; the row appended for the cell has the median time per operation 
+ * (with the minimum and maximum), and the median bytes per element and allocation per operation, 
+ * together with the system and JVM description. Bytes per element (<code>mem/element</code>) come from the 
+ * set's own {@link koekoeke.MemoryFootprint}; for other sets, only the noisier used heap per element 
+ * is known (<code>heap/element</code>), which includes the benchmark's own data structures. 
+ * With a baseline, the latest baseline row of every cell is compared with the new medians 
+ * of time per operation and footprint bytes per element, 
+ * and increases beyond the threshold are reported as regressions; 
+ * the exit status is then 1. Baseline rows measured in a different setting 
+ * (number of operations, seed, system, CPU count, JVM or JVM options) are not compared, only reported. 
+ * 
+ * Usage: <code>java BenchmarkMatrix [-engines hash,cuckoo] [-sizes 1000,1000000] [-dispersions 1,10] [-cv 0.1,0.5]
+ * [-n ops] [-seed s] [-repeats 3] [-results file.csv] [-baseline file.csv] [-threshold 0.1]</code>
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class BenchmarkMatrix 
+{
+    private static final String[] COLUMNS = {"timestamp", "engine", "expected.size", "dispersion", "cv", "num.ops", "seed", "repeats", 
+        "size", "time/op", "time/op.min", "time/op.max", "mem/element", "heap/element", "alloc/op", 
+        "os", "arch", "cpus", "java.version", "vm", "jvm.options"};
+    /**
+     * Columns that must be equal for comparing with a baseline row.
+     */
+    private static final String[] SETTING_COLUMNS = {"num.ops", "seed", "os", "arch", "cpus", "java.version", "vm", "jvm.options"};
+    
+    /**
+     * One benchmark row.
+     */
+    private static class Result
+    {
+        private final Map<String,String> values = new HashMap<>();
+        
+        String get(String column)
+        {
+            return values.get(column);
+        }
+        
+        double getDouble(String column)
+        {
+            String v = values.get(column);
+            return (v == null || v.isEmpty() || "NA".equals(v)) ? Double.NaN : Double.parseDouble(v);
+        }
+        
+        void put(String column, Object value)
+        {
+            values.put(column, String.valueOf(value));
+        }
+        
+        /**
+         * Identifies the matrix cell.
+         */
+        String cell()
+        {
+            return get("engine")+"/"+get("expected.size")+"/"+get("dispersion")+"/"+get("cv");
+        }
+        
+        /**
+         * First setting in which two rows differ.
+         * 
+         * @param other another row
+         * @return null if the rows are comparable
+         */
+        String settingDifference(Result other)
+        {
+            for (String column: SETTING_COLUMNS)
+            {
+                String v = get(column);
+                String w = other.get(column);
+                if (v == null ? w != null : !v.equals(w))
+                    return column+" ("+w+" vs. "+v+")";
+            }
+            return null;
+        }
+    }
+    
+    private static String quote(String field)
+    {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0) return field;
+        return "\""+field.replace("\"", "\"\"")+"\"";
+    }
+    
+    /**
+     * Splits a CSV line; fields may be quoted, with doubled quotes inside.
+     */
+    private static List<String> splitCSV(String line)
+    {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c == '"')
+                {
+                    if (i + 1 < line.length() && line.charAt(i+1) == '"')
+                    {
+                        field.append('"');
+                        i++;
+                    } else
+                        quoted = false;
+                } else
+                    field.append(c);
+            } else if (c == '"')
+                quoted = true;
+            else if (c == ',')
+            {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else
+                field.append(c);
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+    
+    /**
+     * Reads a result file written by {@link #append(java.nio.file.Path, BenchmarkMatrix.Result) }.
+     * 
+     * @param file CSV file with header
+     * @return rows in file order
+     * @throws IOException if the file cannot be read
+     */
+    private static List<Result> readRows(Path file) throws IOException
+    {
+        List<Result> rows = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            String line = in.readLine();
+            if (line == null) return rows;
+            List<String> header = splitCSV(line);
+            while ((line = in.readLine()) != null)
+            {
+                if (line.isEmpty()) continue;
+                List<String> fields = splitCSV(line);
+                Result R = new Result();
+                for (int j = 0; j < header.size() && j < fields.size(); j++)
+                    R.values.put(header.get(j), fields.get(j));
+                rows.add(R);
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Latest row for every matrix cell in a result file.
+     * 
+     * @param file CSV file with header
+     * @return map from {@link Result#cell() } to row
+     * @throws IOException if the file cannot be read
+     */
+    private static Map<String,Result> readLatest(Path file) throws IOException
+    {
+        Map<String,Result> latest = new HashMap<>();
+        for (Result R: readRows(file))
+            latest.put(R.cell(), R);
+        return latest;
+    }
+    
+    /**
+     * Appends a row to a result file; the header is written first if the file is new.
+     */
+    private static void append(Path file, Result R) throws IOException
+    {
+        boolean new_file = !Files.exists(file) || Files.size(file) == 0L;
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8, 
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))))
+        {
+            if (new_file)
+                out.println(String.join(",", COLUMNS));
+            StringBuilder sb = new StringBuilder();
+            for (String column: COLUMNS)
+            {
+                if (sb.length() != 0) sb.append(",");
+                String v = R.get(column);
+                sb.append(quote(v == null ? "" : v));
+            }
+            out.println(sb);
+        }
+    }
+    
+    private static String[] splitList(String val)
+    {
+        return val.split(",");
+    }
+    
+    /**
+     * Runs one workload in this virtual machine and collects the measurements.
+     * 
+     * @param engine tested implementation, as in {@link SetTester#newTestSet(java.lang.String, int) }
+     * @param exp_size expected set size
+     * @param vmr variance-to-mean ratio of the size
+     * @param cv coefficient of variation that gave the ratio, or NaN
+     * @param num_ops number of timed operations
+     * @param seed random seed
+     * @return measurements of one repetition
+     */
+    private static Result run(String engine, double exp_size, double vmr, double cv, int num_ops, int seed)
+    {
+        double dup_rate = 1.0 - 1.0 / vmr;
+        double ins_rate = (1.0 - dup_rate) * exp_size;
+        int num_warmup_ops = (int) (2.0 * exp_size);
+        
+        Set<Object> trythis = SetTester.newTestSet(engine, 2);
+        SetTester tester = new SetTester(trythis, ins_rate, dup_rate, seed);
+        SetTester.ExecutionSnapshot exec = tester.runTimings(num_warmup_ops, num_ops);
+        
+        java.util.Properties Props = System.getProperties();
+        Result R = new Result();
+        R.put("timestamp", Instant.now());
+        R.put("engine", engine);
+        R.put("expected.size", (long) exp_size);
+        R.put("dispersion", vmr);
+        R.put("cv", Double.isNaN(cv) ? "NA" : Double.toString(cv));
+        R.put("num.ops", num_ops);
+        R.put("seed", seed);
+        R.put("repeats", 1);
+        R.put("size", exec.size);
+        R.put("time/op", exec.amortizedTime());
+        R.put("time/op.min", exec.amortizedTime());
+        R.put("time/op.max", exec.amortizedTime());
+        // footprint bytes if the set reports them, used heap (with the tester's bookkeeping) otherwise
+        boolean footprint = (exec.footprint != null);
+        R.put("mem/element", exec.size == 0 || !footprint ? "NA" : Double.toString(exec.footprint.totalBytes() / (double) exec.size));
+        R.put("heap/element", exec.size == 0 || footprint ? "NA" : Double.toString(exec.amortizedMemory()));
+        R.put("alloc/op", exec.allocated < 0L ? "NA" : Double.toString(exec.amortizedAllocation()));
+        R.put("os", Props.getProperty("os.name", "")+" "+Props.getProperty("os.version", ""));
+        R.put("arch", Props.getProperty("os.arch", ""));
+        R.put("cpus", Runtime.getRuntime().availableProcessors());
+        R.put("java.version", Props.getProperty("java.runtime.version", ""));
+        R.put("vm", Props.getProperty("java.vm.name", "")+" "+Props.getProperty("java.vm.info", ""));
+        R.put("jvm.options", String.join(" ", ManagementFactory.getRuntimeMXBean().getInputArguments()));
+        return R;
+    }
+    
+    /**
+     * Runs one workload repeatedly, each time in a new virtual machine with the same options as this one. 
+     * 
+     * @return row with the median measurements
+     * @throws IOException if a run fails
+     */
+    private static Result measure(String engine, double exp_size, double vmr, double cv, int num_ops, int seed, int repeats) 
+            throws IOException, InterruptedException
+    {
+        Path row_file = Files.createTempFile("BenchmarkMatrix", ".csv");
+        try
+        {
+            for (int r = 0; r < repeats; r++)
+            {
+                List<String> command = new ArrayList<>();
+                command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(BenchmarkMatrix.class.getName());
+                command.addAll(Arrays.asList("-cell", engine, Double.toString(exp_size), Double.toString(vmr), Double.toString(cv), 
+                        Integer.toString(num_ops), Integer.toString(seed), row_file.toString()));
+                int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (status != 0)
+                    throw new IOException("Benchmark run failed with exit status "+status+": "+String.join(" ", command));
+            }
+            List<Result> rows = readRows(row_file);
+            Result M = rows.get(0);
+            M.put("timestamp", Instant.now());
+            M.put("repeats", rows.size());
+            M.put("time/op", number(median(rows, "time/op")));
+            M.put("time/op.min", number(percentile(rows, "time/op", 0.0)));
+            M.put("time/op.max", number(percentile(rows, "time/op", 1.0)));
+            M.put("mem/element", number(median(rows, "mem/element")));
+            M.put("heap/element", number(median(rows, "heap/element")));
+            M.put("alloc/op", number(median(rows, "alloc/op")));
+            return M;
+        } finally
+        {
+            Files.deleteIfExists(row_file);
+        }
+    }
+    
+    /**
+     * Order statistic of a column.
+     * 
+     * @param rows measurements
+     * @param column numerical column 
+     * @param p 0 for minimum, 1 for maximum
+     * @return NaN if the column is unknown
+     */
+    private static double percentile(List<Result> rows, String column, double p)
+    {
+        double[] values = new double[rows.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = rows.get(i).getDouble(column);
+        Arrays.sort(values); // NaN last
+        return values[(int) Math.round(p * (values.length - 1))];
+    }
+    
+    private static double median(List<Result> rows, String column)
+    {
+        double[] values = new double[rows.size()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = rows.get(i).getDouble(column);
+        Arrays.sort(values);
+        int m = values.length / 2;
+        return values.length % 2 == 1 ? values[m] : (values[m-1] + values[m]) / 2.0;
+    }
+    
+    /**
+     * Column value for a measurement. 
+     * 
+     * @return NA for NaN
+     */
+    private static String number(double value)
+    {
+        return Double.isNaN(value) ? "NA" : Double.toString(value);
+    }
+    
+    /**
+     * Relative change.
+     * 
+     * @return NaN if either value is unknown 
+     */
+    private static double change(double baseline, double current)
+    {
+        return (current - baseline) / baseline;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length > 0 && "-cell".equals(args[0]))
+        {
+            // one repetition, started by measure()
+            Result R = run(args[1], Double.parseDouble(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]), 
+                    Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+            append(Paths.get(args[7]), R);
+            return;
+        }
+        
+        String[] engines = {"hash", "cuckoo"};
+        String[] sizes = {"1000", "100000"};
+        String[] dispersions = null;
+        String[] cvs = null;
+        int num_ops = 1000000;
+        int seed = 2016;
+        int repeats = 3;
+        Path results_file = Paths.get("benchmark-results.csv");
+        Path baseline_file = null;
+        double threshold = 0.10;
+        
+        int arg_idx = 0;
+        while (arg_idx < args.length && args[arg_idx].startsWith("-"))
+        {
+            String arg = args[arg_idx++];
+            String val = arg_idx < args.length ? args[arg_idx++] : null;
+            if ("-engines".equals(arg))
+                engines = splitList(val);
+            else if ("-sizes".equals(arg))
+                sizes = splitList(val);
+            else if ("-dispersions".equals(arg))
+                dispersions = splitList(val);
+            else if ("-cv".equals(arg))
+                cvs = splitList(val);
+            else if ("-n".equals(arg))
+                num_ops = Integer.parseInt(val);
+            else if ("-seed".equals(arg))
+                seed = Integer.parseInt(val);
+            else if ("-repeats".equals(arg))
+                repeats = Integer.parseInt(val);
+            else if ("-results".equals(arg))
+                results_file = Paths.get(val);
+            else if ("-baseline".equals(arg))
+                baseline_file = Paths.get(val);
+            else if ("-threshold".equals(arg))
+                threshold = Double.parseDouble(val);
+            else
+                throw new IllegalArgumentException("Unknown option "+arg);
+        }
+        if (repeats < 1)
+            throw new IllegalArgumentException("Number of repeats must be positive: "+repeats);
+        if (dispersions == null && cvs == null)
+            dispersions = new String[]{"1"};
+        
+        for (String engine: engines)
+            SetTester.newTestSet(engine, 2); // fail on unusable engines before any run
+        
+        // dispersion cells: variance-to-mean ratio, with the coefficient of variation it came from (or NaN)
+        List<double[]> cells = new ArrayList<>();
+        for (String size: sizes)
+        {
+            double exp_size = Double.parseDouble(size);
+            if (dispersions != null)
+                for (String dispersion: dispersions)
+                    cells.add(new double[]{exp_size, Double.parseDouble(dispersion), Double.NaN});
+            if (cvs != null)
+                for (String cv: cvs)
+                {
+                    double c = Double.parseDouble(cv);
+                    cells.add(new double[]{exp_size, c * c * exp_size, c}); // as in SetTester
+                }
+        }
+        for (double[] cell: cells)
+            if (cell[1] < 1.0)
+                throw new IllegalArgumentException("Dispersion (variance-to-mean ratio) must be >= 1.0: "
+                        +(Double.isNaN(cell[2]) ? "" : "cv "+cell[2]+" gives ")+cell[1]+" at size "+cell[0]);
+        
+        Map<String,Result> baseline = (baseline_file == null ? new HashMap<String,Result>() : readLatest(baseline_file));
+        List<String> regressions = new ArrayList<>();
+        List<String> incomparable = new ArrayList<>();
+        StringBuilder summary = new StringBuilder("# Engine\tsize\tdispersion\tcv\ttime/op\tmem/element\theap/element\ttime.change\tmem.change\n");
+        for (String engine: engines)
+            for (double[] cell: cells)
+            {
+                double exp_size = cell[0];
+                double vmr = cell[1];
+                double cv = cell[2];
+                System.out.println("# Run: "+engine+" "+(long) exp_size+" "+vmr+(Double.isNaN(cv) ? "" : " (cv "+cv+")"));
+                Result R = measure(engine, exp_size, vmr, cv, num_ops, seed, repeats);
+                append(results_file, R);
+
+                Result B = baseline.get(R.cell());
+                String difference = (B == null ? null : R.settingDifference(B));
+                if (difference != null)
+                {
+                    incomparable.add(R.cell()+": baseline differs in "+difference);
+                    B = null;
+                }
+                double time_change = (B == null ? Double.NaN : change(B.getDouble("time/op"), R.getDouble("time/op")));
+                double mem_change = (B == null ? Double.NaN : change(B.getDouble("mem/element"), R.getDouble("mem/element")));
+                summary.append("# ").append(engine).append("\t").append(R.get("expected.size")).append("\t").append(vmr);
+                summary.append("\t").append(R.get("cv"));
+                summary.append("\t").append(R.get("time/op")).append("\t").append(R.get("mem/element"));
+                summary.append("\t").append(R.get("heap/element"));
+                summary.append("\t").append(Double.isNaN(time_change) ? "NA" : String.format("%+.1f%%", 100.0 * time_change));
+                summary.append("\t").append(Double.isNaN(mem_change) ? "NA" : String.format("%+.1f%%", 100.0 * mem_change));
+                summary.append("\n");
+                if (time_change > threshold)
+                    regressions.add(R.cell()+" time/op "+B.get("time/op")+" -> "+R.get("time/op"));
+                if (mem_change > threshold)
+                    regressions.add(R.cell()+" mem/element "+B.get("mem/element")+" -> "+R.get("mem/element"));
+            }
+        System.out.print(summary);
+        for (String cell: incomparable)
+            System.out.println("# NOT COMPARED "+cell);
+        for (String regression: regressions)
+            System.out.println("# REGRESSION "+regression);
+        if (!regressions.isEmpty())
+            System.exit(1);
+    }
+}
@@ -24,8 +24,20 @@
 
 
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import koekoeke.BatchUpdates;
+import koekoeke.Footprint;
+import koekoeke.FrozenCuckooSet;
+import koekoeke.HashingEvents;
+import koekoeke.HashingStatistics;
+import koekoeke.MemoryFootprint;
+import koekoeke.RawCells;
 
 /**
  *
@@ -33,7 +45,7 @@ import java.util.Set;
  * 
  * @author Mikl&oacute;s Cs&#369;r&ouml;s
  */
-public class LinearProbing extends AbstractSet<Object> implements Set<Object>
+public class LinearProbing extends AbstractSet<Object> implements Set<Object>, MemoryFootprint, RawCells, BatchUpdates
 {
     private static final int HASH_MULTIPLY =
             (int)((3.0-Math.sqrt(5))*(1<<31));
@@ -44,6 +56,14 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
     
     private static final float MAX_LOAD_FACTOR = 0.66f;
     private static final int DEFAULT_CAPACITY = 1<<10; // 1024
+    /**
+     * Tables at least this large are doubled in parallel.
+     */
+    private static final int PARALLEL_RESIZE_MIN_CAPACITY = 1<<16;
+    /**
+     * Minimum number of old cells per parallel resize task. 
+     */
+    private static final int PARALLEL_RESIZE_MIN_RANGE = 1<<14;
     
     public LinearProbing()
     {
@@ -96,9 +116,48 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
      */
     private int capacity_bits;
     
+    /**
+     * Statistics collector; null when disabled.
+     */
+    private HashingStatistics statistics = null;
+    
+    /**
+     * Starts collecting statistics about rehashes and probe lengths.
+     * 
+     * @return the statistics collector (same as before if already enabled)
+     */
+    public HashingStatistics enableStatistics()
+    {
+        if (statistics == null)
+            statistics = new HashingStatistics();
+        return statistics;
+    }
+    
+    /**
+     * Stops collecting statistics.
+     */
+    public void disableStatistics()
+    {
+        statistics = null;
+    }
+    
+    /**
+     * Current statistics collector.
+     * 
+     * @return null if statistics are disabled
+     */
+    public HashingStatistics getStatistics()
+    {
+        return statistics;
+    }
+    
     /**
      * Multiplicative hashing [Knuth TAO vol. III, 6.4]
      * 
+     * The index takes the top bits of the product, so after doubling, an element with 
+     * index <var>i</var> gets 2<var>i</var> or 2<var>i</var>+1; the parallel resize 
+     * relies on this monotone mapping, which overriding implementations must keep. 
+     * 
      * @param x argument for hash function
      * @return Hash value between 0 and 2<sup>{@link #capacity_bits}</sup>-1
      */
@@ -129,6 +188,28 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
     {
         return ((float)size) / table.length;
     }
+    
+    /**
+     * Whether the insertion of one more element will double the table.
+     * 
+     * @return true if the next new element triggers a rehash
+     */
+    boolean growsOnNextInsertion()
+    {
+        return ((float)(size + 1)) / table.length > max_load_factor;
+    }
+    
+    /**
+     * Memory usage of the table, with key sizes estimated from a sample.
+     * 
+     * @return footprint of the set
+     */
+    @Override
+    public Footprint footprint()
+    {
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), size, Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(Footprint.referenceArrayBytes(table.length), key_bytes, size, table.length);
+    }
 
     /**
      * Search for an element.
@@ -145,12 +226,25 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
         return i;
     }
     
+    /**
+     * Records the probe length of a completed search in the statistics.
+     * 
+     * @param key the search key
+     * @param i index returned by {@link #search(java.lang.Object) }
+     */
+    private void recordProbeLength(Object key, int i)
+    {
+        int home = getTableIndex(key.hashCode());
+        statistics.recordProbeLength(1 + ((i - home) & (table.length - 1)));
+    }
+    
     @Override
     public boolean contains(Object emt)
     {
         if (emt==null) return false;
         
         int i = search(emt);
+        if (statistics != null) recordProbeLength(emt, i);
         return (table[i]!=null);
     }
 
@@ -166,10 +260,17 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
         if (emt==null) throw new UnsupportedOperationException("Cannot add null element in this implementation.");
         
         int i = search(emt);
+        if (statistics != null) recordProbeLength(emt, i);
         if (table[i]==null)
         {
             table[i]=emt;
             ++size;
+            if (HashingEvents.isLongInsertionEnabled())
+            {
+                int displacement = (i - getTableIndex(emt.hashCode())) & (table.length - 1);
+                if (displacement >= HashingEvents.DISPLACEMENT_THRESHOLD)
+                    HashingEvents.longInsertion(getClass(), displacement, table.length, size, false);
+            }
             if (loadFactor()>max_load_factor)
                 rehash(1);
             return true;
@@ -182,10 +283,61 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
     {
         LinearProbing tabula_rasa = new LinearProbing();
         this.table = tabula_rasa.table;
+        this.capacity_bits = tabula_rasa.capacity_bits;
         this.size = 0;
     }
     
 
+    /**
+     * Batched operations touch regions of 2<sup>{@value #BATCH_REGION_BITS}</sup> cells.
+     */
+    private static final int BATCH_REGION_BITS = 12;
+    /**
+     * Maximum number of regions in batched operations is 2<sup>{@value #BATCH_MAX_PARTITION_BITS}</sup>.
+     */
+    private static final int BATCH_MAX_PARTITION_BITS = 12;
+    
+    /**
+     * Batch insertion. The table is grown first for all insertions, then the keys 
+     * are inserted in the order of their home cells' regions. 
+     * 
+     * @param keys new elements 
+     * @param insertions all must be true: deletion is not supported
+     * @param results filled with the results
+     * @return number of new elements 
+     * @throws UnsupportedOperationException if there is a deletion or a null key in the batch; the set is then unchanged
+     */
+    @Override
+    public int applyBatch(Object[] keys, boolean[] insertions, boolean[] results)
+    {
+        if (insertions.length < keys.length || results.length < keys.length)
+            throw new IllegalArgumentException("Operation or result array is shorter than the key array");
+        // validate the whole batch before resizing or changing anything
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (!insertions[i])
+                throw new UnsupportedOperationException("Deletion is not supported in this implementation.");
+            if (keys[i] == null) 
+                throw new UnsupportedOperationException("Cannot add null element in this implementation.");
+        }
+        while (size + keys.length > max_load_factor * table.length)
+            rehash(1);
+        
+        int partition_bits = Math.min(Math.max(capacity_bits - BATCH_REGION_BITS, 0), BATCH_MAX_PARTITION_BITS);
+        int[] regions = new int[keys.length];
+        if (partition_bits > 0)
+            for (int i = 0; i < keys.length; i++)
+                regions[i] = getTableIndex(keys[i].hashCode()) >>> (capacity_bits - partition_bits);
+        int num_added = 0;
+        for (int i: BatchUpdates.partitionOrder(regions, 1 << partition_bits))
+        {
+            boolean b = add(keys[i]);
+            results[i] = b;
+            if (b) num_added++;
+        }
+        return num_added;
+    }
+
     /**
      * Deletion is not supported
      * @param does_not_matter
@@ -206,22 +358,137 @@ public class LinearProbing extends AbstractSet<Object> implements Set<Object>
      */
     private void rehash(int capacity_bits_delta)
     {
+        long T0 = (statistics == null ? 0L : System.nanoTime());
+        HashingEvents.Resize event = new HashingEvents.Resize();
+        event.begin();
         int newcapbits = this.capacity_bits+capacity_bits_delta;
         Object[] old_table = this.table;
         this.table = new Object[1<<newcapbits];
         this.capacity_bits = newcapbits;
-        this.size = 0;
-        for (int i=0; i<old_table.length; i++)
+        if (capacity_bits_delta == 1 && old_table.length >= PARALLEL_RESIZE_MIN_CAPACITY 
+                && ForkJoinPool.getCommonPoolParallelism() > 1)
+        {
+            parallelDoubling(old_table);
+        } else
         {
-            if (old_table[i] != null)
+            this.size = 0;
+            for (int i=0; i<old_table.length; i++)
             {
-                Object E = old_table[i];
-                int j = search(E); 
-                assert (table[j]==null); // all keys are distinct in old_table[]
-                table[j] = E;
-                size++;
+                if (old_table[i] != null)
+                {
+                    Object E = old_table[i];
+                    int j = search(E); 
+                    assert (table[j]==null); // all keys are distinct in old_table[]
+                    table[j] = E;
+                    size++;
+                }
             }
         }
+        if (statistics != null)
+            statistics.recordRehash(capacity_bits_delta < 0 ? HashingStatistics.RehashCause.SHRINK : HashingStatistics.RehashCause.GROWTH, System.nanoTime()-T0);
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.setClass = getClass();
+            event.trigger = (capacity_bits_delta < 0 ? HashingStatistics.RehashCause.SHRINK : HashingStatistics.RehashCause.GROWTH).name();
+            event.oldCapacity = old_table.length;
+            event.newCapacity = table.length;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reinserts the elements of the old table into the new, doubled table 
+     * with concurrent tasks. The old table is cut into ranges that start 
+     * at empty cells, so that every element in a range has its home in the same range. 
+     * Since the index mapping is monotone, the elements of old range [<var>a</var>, <var>b</var>) 
+     * have their new homes in [2<var>a</var>, 2<var>b</var>), and the tasks write disjoint 
+     * parts of the new table. An element whose probe sequence would leave its task's part 
+     * is set aside, and inserted serially at the end, together with the run that 
+     * wraps around the end of the old table. 
+     * 
+     * @param old_table the table before doubling; the new one is already allocated
+     */
+    private void parallelDoubling(final Object[] old_table)
+    {
+        int first_empty = 0;
+        while (old_table[first_empty] != null) first_empty++; // load factor < 1
+        
+        int num_tasks = Math.min(4 * ForkJoinPool.getCommonPoolParallelism(), 
+                Math.max(1, (old_table.length - first_empty) / PARALLEL_RESIZE_MIN_RANGE));
+        List<ForkJoinTask<List<Object>>> tasks = new ArrayList<>();
+        int range_start = first_empty;
+        for (int t = 1; t <= num_tasks && range_start < old_table.length; t++)
+        {
+            int range_end = first_empty + (int) ((old_table.length - first_empty) * (long) t / num_tasks);
+            while (range_end < old_table.length && old_table[range_end] != null) range_end++;
+            if (range_end <= range_start) continue;
+            final int lo = range_start;
+            final int hi = range_end;
+            tasks.add(ForkJoinPool.commonPool().submit(() -> reinsertRange(old_table, lo, hi)));
+            range_start = range_end;
+        }
+        
+        List<Object> overflow = new ArrayList<>();
+        for (int i = 0; i < first_empty; i++)
+            overflow.add(old_table[i]);
+        for (ForkJoinTask<List<Object>> task: tasks)
+            overflow.addAll(task.join());
+        for (Object E: overflow)
+        {
+            int j = search(E); 
+            assert (table[j]==null); 
+            table[j] = E;
+        }
+    }
+    
+    /**
+     * Reinserts the elements of an old table range into the corresponding part of the new table.
+     * 
+     * @param old_table the table before doubling
+     * @param lo first index of the range; an empty cell 
+     * @param hi end of the range (exclusive): table length or an empty cell
+     * @return elements that did not fit in the new table's part [2<var>lo</var>, 2<var>hi</var>)
+     */
+    private List<Object> reinsertRange(Object[] old_table, int lo, int hi)
+    {
+        List<Object> overflow = new ArrayList<>();
+        int part_end = 2 * hi;
+        for (int i = lo; i < hi; i++)
+        {
+            Object E = old_table[i];
+            if (E == null) continue;
+            int j = getTableIndex(E.hashCode());
+            while (j < part_end && table[j] != null) j++;
+            if (j < part_end)
+                table[j] = E;
+            else
+                overflow.add(E);
+        }
+        return overflow;
+    }
+
+    @Override
+    public Object[][] cellArrays()
+    {
+        return new Object[][]{table};
+    }
+    
+    @Override
+    public Object emptyCell()
+    {
+        return null;
+    }
+    
+    /**
+     * Immutable copy with a compact layout, for sets that are only queried from now on. 
+     * 
+     * @return a new frozen set with the same elements
+     */
+    public FrozenCuckooSet freeze()
+    {
+        return FrozenCuckooSet.of(this);
     }
 
     /**
@@ -25,11 +25,30 @@
  */
 
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import koekoeke.BatchUpdates;
+import koekoeke.BlockedCuckooHashingSet;
+import koekoeke.CuckooHashingSet;
+import koekoeke.DenseIdSet;
+import koekoeke.Footprint;
+import koekoeke.HashingStatistics;
+import koekoeke.MemoryFootprint;
+import koekoeke.SegmentedHashSet;
 
 /**
  *
@@ -43,6 +62,14 @@ import java.util.Set;
  * (if {@link #dup_rate}&gt; 0), with expectation 
  * {@link #insert_rate}/(1-{@link #dup_rate}). 
  * 
+ * Searches may be interleaved with the updates: a fraction {@link #read_ratio}
+ * of the operations are lookups, out of which a fraction {@link #hit_ratio} 
+ * targets an element in the set, chosen by uniform, Zipf or hot-set popularity,
+ * and the rest are unsuccessful searches for keys that are never inserted.
+ * 
+ * Elements are identified by consecutive positive integers, which are turned into 
+ * keys by a {@link KeyGenerator}; unsuccessful searches use negative identifiers. 
+ * 
  * @author Mikl&oacute;s Cs&#369;r&ouml;s
  */
 public final class SetTester 
@@ -70,6 +97,206 @@ public final class SetTester
     private final double dup_rate;
     private final Random RND;
     private final Set<Object> test_set;
+    
+    /**
+     * Fraction of search operations in the sequence.
+     */
+    private double read_ratio = 0.0;
+    /**
+     * Fraction of successful searches. 
+     */
+    private double hit_ratio = 1.0;
+    /**
+     * Exponent for Zipf popularity among the elements; 0 for uniform.  
+     */
+    private double zipf_exponent = 0.0;
+    /**
+     * Fraction of popular elements in the hot-set model; 0 if not used.
+     */
+    private double hot_fraction = 0.0;
+    
+    /**
+     * Maps element identifiers to keys.
+     */
+    private KeyGenerator keys = KeyDistribution.SEQUENTIAL;
+    
+    /**
+     * Number of updates applied together if the tested set implements {@link BatchUpdates}; 0 for one by one.
+     */
+    private int batch_size = 0;
+    
+    /**
+     * Mapping from element identifiers to set elements.  
+     */
+    public interface KeyGenerator
+    {
+        /**
+         * Key for an element. Distinct identifiers must give distinct (non-equal) keys, 
+         * including negative identifiers: the mapping should be injective over all <code>long</code>s.
+         * 
+         * @param ident element identifier; negative for keys that are never inserted
+         * @return the key
+         */
+        Object key(long ident);
+    }
+    
+    /**
+     * Key distributions for stress-testing the hash functions.
+     */
+    public enum KeyDistribution implements KeyGenerator
+    {
+        /**
+         * {@link Long} identifiers as they are. 
+         */
+        SEQUENTIAL
+        {
+            @Override
+            public Object key(long ident)
+            {
+                return Long.valueOf(ident);
+            }
+        },
+        /**
+         * Random-looking 64-bit {@link Long}s by a bijective mixing function (SplitMix64 finalizer).
+         */
+        RANDOM
+        {
+            @Override
+            public Object key(long ident)
+            {
+                long z = ident;
+                z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+                z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+                return Long.valueOf(z ^ (z >>> 31));
+            }
+        },
+        /**
+         * Multiples of 1024 (identifiers rotated by 10 bits): the low bits of the hash code are all 0 
+         * for identifiers with absolute value below 2<sup>22</sup>. 
+         */
+        STRIDED
+        {
+            @Override
+            public Object key(long ident)
+            {
+                return Long.valueOf(Long.rotateLeft(ident, 10));
+            }
+        },
+        /**
+         * Identifiers in the high bits of {@link Long}s (rotated by 40 bits): the hash codes 
+         * are multiples of 256, and take only 2<sup>24</sup> distinct values while 
+         * the identifiers' high bits are equal. 
+         */
+        LOW_ENTROPY
+        {
+            @Override
+            public Object key(long ident)
+            {
+                return Long.valueOf(Long.rotateLeft(ident, 40));
+            }
+        },
+        /**
+         * {@link String}s with a long common prefix, like URLs from the same site.
+         */
+        PREFIXED_STRING
+        {
+            @Override
+            public Object key(long ident)
+            {
+                return "https://www.example.com/catalog/items/"+Long.toString(ident);
+            }
+        },
+        /**
+         * {@link String}s in pairs with equal hash code, using 
+         * <code>"Aa".hashCode()==</code><code>"BB".hashCode()</code>. 
+         * Two is the most keys with equal hash codes that two-table cuckoo hashing can store.
+         */
+        COLLIDING
+        {
+            @Override
+            public Object key(long ident)
+            {
+                return Long.toString(ident >> 1) + ((ident & 1L) == 0L ? "Aa" : "BB");
+            }
+        };
+        
+        /**
+         * Lookup by lowercase name.
+         * 
+         * @param name one of sequential, random, strided, low_entropy, prefixed_string, colliding
+         * @return the matching distribution
+         */
+        public static KeyDistribution forName(String name)
+        {
+            return valueOf(name.toUpperCase());
+        }
+    }
+    
+    /**
+     * Sets the batch size for updates. Consecutive insertions and deletions are 
+     * collected and applied by {@link BatchUpdates#applyBatch(java.lang.Object[], boolean[], boolean[]) }, 
+     * if the tested set supports it; a search flushes the pending updates first.
+     * 
+     * @param batch_size number of updates per batch; 0 or 1 for one by one
+     */
+    public void setBatchSize(int batch_size)
+    {
+        this.batch_size = batch_size;
+    }
+    
+    /**
+     * Sets the key generator (by default, {@link KeyDistribution#SEQUENTIAL}).
+     * 
+     * @param keys mapping from identifiers to keys
+     */
+    public void setKeyGenerator(KeyGenerator keys)
+    {
+        this.keys = keys;
+    }
+    
+    /**
+     * Sets the proportion of searches.
+     * 
+     * @param read_ratio fraction of search operations among all operations; 0 for updates only
+     * @param hit_ratio fraction of successful searches 
+     */
+    public void setLookupMix(double read_ratio, double hit_ratio)
+    {
+        if (read_ratio < 0.0 || read_ratio >= 1.0)
+            throw new IllegalArgumentException("Read ratio must be in [0,1)");
+        if (hit_ratio < 0.0 || hit_ratio > 1.0)
+            throw new IllegalArgumentException("Hit ratio must be in [0,1]");
+        this.read_ratio = read_ratio;
+        this.hit_ratio = hit_ratio;
+    }
+    
+    /**
+     * Successful searches pick the <var>r</var>-th element 
+     * with probability proportional to 1/<var>r</var><sup><var>s</var></sup>.
+     * 
+     * @param s Zipf exponent; 0 for uniform popularity
+     */
+    public void setZipfPopularity(double s)
+    {
+        if (s < 0.0)
+            throw new IllegalArgumentException("Zipf exponent must be non-negative");
+        this.zipf_exponent = s;
+        this.hot_fraction = 0.0;
+    }
+    
+    /**
+     * Successful searches pick from a hot set: a fraction <var>f</var> of the elements 
+     * receive a fraction 1-<var>f</var> of the searches (80-20 rule for <var>f</var>=0.2).
+     * 
+     * @param f size of the hot set relative to the set size, between 0 and 0.5; 0 for uniform popularity
+     */
+    public void setHotSetPopularity(double f)
+    {
+        if (f < 0.0 || f > 0.5)
+            throw new IllegalArgumentException("Hot-set fraction must be in [0, 0.5]");
+        this.hot_fraction = f;
+        this.zipf_exponent = 0.0;
+    }
 
     public double sizeMean()
     {
@@ -85,11 +312,16 @@ public final class SetTester
     {
         private double current_time;
         private final PriorityQueue<Mortal> elements;
+        /**
+         * Same elements as in the priority queue, for random access in searches.
+         */
+        private final ArrayList<Mortal> live;
         private long current_ident;
 
         OpSequenceGenerator()
         {
             this.elements = new PriorityQueue<>();
+            this.live = new ArrayList<>();
             this.current_ident = 0L;
             this.current_time = 0.0;
         }
@@ -106,11 +338,76 @@ public final class SetTester
         }
 
         /**
-         * Next operation: insertion or deletion.
+         * Next operation: search, insertion or deletion.
          * 
          * @return 
          */
+        @Override
         public SetOperation next()
+        {
+            if (read_ratio != 0.0 && RND.nextDouble() < read_ratio)
+                return nextSearch();
+            else
+                return nextUpdate();
+        }
+        
+        /**
+         * Next search operation; does not advance the time. 
+         * 
+         * @return search for an element in the set, or for a key never inserted 
+         */
+        private SetOperation nextSearch()
+        {
+            int n = live.size();
+            if (n == 0 || RND.nextDouble() >= hit_ratio)
+            {
+                // mirror of the identifiers issued so far: similar keys, but never inserted
+                long absent_ident = -1L - (long) (RND.nextDouble() * Math.max(current_ident, 1L));
+                return searchOperation(keys.key(absent_ident));
+            }
+            int r;
+            if (zipf_exponent != 0.0)
+                r = nextZipfRank(n);
+            else if (hot_fraction != 0.0)
+            {
+                int hot_size = Math.max(1, (int) Math.ceil(hot_fraction * n));
+                if (RND.nextDouble() < 1.0 - hot_fraction)
+                    r = RND.nextInt(hot_size);
+                else
+                    r = hot_size + RND.nextInt(Math.max(1, n - hot_size));
+                if (r >= n) r = n - 1;
+            } else 
+                r = RND.nextInt(n);
+            return searchOperation(keys.key(live.get(r).ident));
+        }
+        
+        /**
+         * Random rank by (continuous approximation of) Zipf's law, using the inverse CDF transformation. 
+         * 
+         * @param n number of elements
+         * @return rank between 0 and <var>n</var>-1; small ranks are the most popular
+         */
+        private int nextZipfRank(int n)
+        {
+            double u = RND.nextDouble();
+            double x;
+            if (Math.abs(zipf_exponent - 1.0) < 1e-9)
+                x = Math.exp(u * Math.log(n + 1.0));
+            else
+            {
+                double a = 1.0 - zipf_exponent;
+                x = Math.pow((Math.pow(n + 1.0, a) - 1.0) * u + 1.0, 1.0 / a);
+            }
+            int r = (int) x - 1;
+            return Math.max(0, Math.min(n - 1, r));
+        }
+        
+        /**
+         * Next insertion or deletion. 
+         * 
+         * @return 
+         */
+        private SetOperation nextUpdate()
         {
             double tot_insert_rate = insert_rate + this.elements.size() * dup_rate;
             double next_bday = current_time + nextExponential(tot_insert_rate);
@@ -118,14 +415,22 @@ public final class SetTester
             if (elements.isEmpty() || elements.peek().diesAfter(next_bday))
             {
                 this.current_ident ++;
-                op = insertOperation(new Long(this.current_ident));
+                op = insertOperation(keys.key(this.current_ident));
                 Mortal emt = new Mortal(this.current_ident, next_bday);
                 this.elements.add(emt);
+                emt.live_idx = live.size();
+                this.live.add(emt);
                 this.current_time = emt.birth_date;
             } else 
             {
                 Mortal emt = elements.poll();
-                op = deleteOperation(new Long(emt.ident));
+                Mortal last = live.remove(live.size() - 1);
+                if (last != emt)
+                {
+                    live.set(emt.live_idx, last);
+                    last.live_idx = emt.live_idx;
+                }
+                op = deleteOperation(keys.key(emt.ident));
                 this.current_time = emt.death_date;
             }
             return op;
@@ -134,7 +439,7 @@ public final class SetTester
         /**
          * Next block of operations.
          * @param num_ops number of operations in the returned table
-         * @return table with insertion and deletion operations.
+         * @return table with search, insertion and deletion operations.
         */
         SetOperation[] next(int num_ops)
         {
@@ -191,6 +496,26 @@ public final class SetTester
          * @return success of the operation
          */
         abstract boolean execute();
+        
+        /**
+         * Whether this is an insertion.
+         * 
+         * @return false by default
+         */
+        boolean isInsertion()
+        {
+            return false;
+        }
+        
+        /**
+         * Whether this is a deletion.
+         * 
+         * @return false by default
+         */
+        boolean isDeletion()
+        {
+            return false;
+        }
     }
 
     /**
@@ -208,6 +533,12 @@ public final class SetTester
             {
                 return insert();
             }
+            
+            @Override
+            boolean isInsertion()
+            {
+                return true;
+            }
         };
     }
     
@@ -226,6 +557,30 @@ public final class SetTester
             {
                 return delete();
             }
+            
+            @Override
+            boolean isDeletion()
+            {
+                return true;
+            }
+        };
+    }
+    
+    /**
+     * Search for a key.
+     * 
+     * @param key
+     * @return 
+     */
+    SetOperation searchOperation(Object key)
+    {
+        return new SetOperation(key)
+        {
+            @Override
+            boolean execute()
+            {
+                return search();
+            }
         };
     }
     
@@ -237,6 +592,10 @@ public final class SetTester
         private final double birth_date;
         private final double death_date;
         private final long ident;
+        /**
+         * Position in the list of live elements, maintained by {@link OpSequenceGenerator}.
+         */
+        private int live_idx;
 
         Mortal(long ident, double birth_date, double life_span)
         {
@@ -285,6 +644,8 @@ public final class SetTester
 
     /**
      * Used memory. Calls garbage collector a few times until memory usage settles. 
+     * Only for sets that do not report their own {@link MemoryFootprint}: 
+     * the figure includes everything else on the heap, such as the operation generator. 
      * 
      * @return Java Virtual Machine used memory in bytes
      */
@@ -306,6 +667,23 @@ public final class SetTester
         return current_use;
     }
     
+    /**
+     * Bytes allocated so far by the current thread. 
+     * 
+     * @return allocated bytes, or -1 if the virtual machine does not support allocation tracking
+     */
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            com.sun.management.ThreadMXBean hotspot_threads = (com.sun.management.ThreadMXBean) threads;
+            if (hotspot_threads.isThreadAllocatedMemorySupported() && hotspot_threads.isThreadAllocatedMemoryEnabled())
+                return hotspot_threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+    
     /**
      * Snapshot of the execution after a series of operations, with information
      * about running time and memory usage.
@@ -314,15 +692,29 @@ public final class SetTester
     {
         public final int num_ops;
         public final long time_nanosec;
+        /**
+         * Memory used by the set: the total of its {@link #footprint} if it reports one, 
+         * or else the used heap after garbage collection. 
+         */
         public final long memory;
         public final int size;
+        /**
+         * Bytes allocated during the operations; -1 if unknown.
+         */
+        public final long allocated;
+        /**
+         * Memory usage reported by the tested set; null if it does not implement {@link MemoryFootprint}.
+         */
+        public final Footprint footprint;
 
-        private ExecutionSnapshot(int num_ops, long delta, long mem, int size) 
+        private ExecutionSnapshot(int num_ops, long delta, long mem, int size, long allocated, Footprint footprint) 
         {
             this.num_ops=num_ops;
             this.time_nanosec = delta;
             this.memory = mem;
             this.size = size;
+            this.allocated = allocated;
+            this.footprint = footprint;
         }
 
         /**
@@ -344,10 +736,21 @@ public final class SetTester
             return memory / ((double) size);
         }
         
+        /**
+         * Average allocation per operation.
+         * 
+         * @return bytes per operation
+         */
+        public final double amortizedAllocation()
+        {
+            return allocated / ((double) num_ops);
+        }
+        
         /**
          * String for tabulated printing.
          * 
-         * @return tab-separated values: number of operations, size, used memory (bytes), total execution time (nanoseconds), memory usage per element, amortized execution time per operation   
+         * @return tab-separated values: number of operations, size, used memory (bytes), total execution time (nanoseconds), memory usage per element, amortized execution time per operation,
+         *  allocated bytes per operation, and if available, backing array bytes, key bytes, occupied and wasted slots  
          */
         @Override
         public String toString()
@@ -357,16 +760,30 @@ public final class SetTester
             sb.append("\t").append(this.size);
             sb.append("\t").append(this.memory);
             sb.append("\t").append(this.time_nanosec);
-            if (this.size != 0)
-              sb.append("\t").append(amortizedMemory());
-            if (this.num_ops != 0)
-              sb.append("\t").append(amortizedTime());
+            sb.append("\t").append(this.size == 0 ? "NA" : Double.toString(amortizedMemory()));
+            sb.append("\t").append(this.num_ops == 0 ? "NA" : Double.toString(amortizedTime()));
+            sb.append("\t").append(this.num_ops == 0 || this.allocated < 0L ? "NA" : Double.toString(amortizedAllocation()));
+            if (this.footprint != null)
+                sb.append("\t").append(this.footprint);
             return sb.toString();
         }
 
         private String headerString()
         {
-            return "num.ops\tsize\tmemory(bytes)\ttime(ns)\tmem/element\ttime/op";
+            String header = "num.ops\tsize\tmemory(bytes)\ttime(ns)\tmem/element\ttime/op\talloc/op";
+            if (this.footprint != null)
+                header += "\tarray(bytes)\tkeys(bytes)\toccupied\twasted";
+            return header;
+        }
+        
+        /**
+         * Where the memory figure comes from. 
+         * 
+         * @return description for the output header
+         */
+        private String memorySource()
+        {
+            return this.footprint == null ? "memory: used heap" : "memory: footprint";
         }
     }
 
@@ -380,18 +797,72 @@ public final class SetTester
     private ExecutionSnapshot timeRandomSequence(OpSequenceGenerator G, int num_ops)
     {
         SetOperation[] ops = G.next(num_ops);
+        long A0 = allocatedBytes();
         long T0 = System.nanoTime();
         boolean b;
-        for (SetOperation op : ops)
+        if (batch_size > 1 && test_set instanceof BatchUpdates)
+        {
+            executeBatched(ops);
+        } else
         {
-          b = op.execute();
+            for (SetOperation op : ops)
+            {
+              b = op.execute();
+            }
         }
 
         long T1 = System.nanoTime();
+        long A1 = allocatedBytes();
         ops = null;
-        long mem = usedMemory();
         long elapsed_time = T1 - T0;
-        return new ExecutionSnapshot(num_ops, elapsed_time, mem, test_set.size());
+        long allocated = (A0 < 0L || A1 < 0L) ? -1L : A1 - A0;
+        
+        Footprint footprint = null;
+        long mem;
+        if (test_set instanceof MemoryFootprint)
+        {
+            footprint = ((MemoryFootprint) test_set).footprint();
+            mem = footprint.totalBytes();
+        } else
+            mem = usedMemory();
+        return new ExecutionSnapshot(num_ops, elapsed_time, mem, test_set.size(), allocated, footprint);
+    }
+
+    /**
+     * Executes operations with batched updates. 
+     * 
+     * @param ops operation sequence
+     */
+    private void executeBatched(SetOperation[] ops)
+    {
+        BatchUpdates batch_set = (BatchUpdates) test_set;
+        Object[] batch_keys = new Object[batch_size];
+        boolean[] insertions = new boolean[batch_size];
+        boolean[] results = new boolean[batch_size];
+        int n = 0;
+        for (SetOperation op : ops)
+        {
+            if (op.isInsertion() || op.isDeletion())
+            {
+                batch_keys[n] = op.key;
+                insertions[n] = op.isInsertion();
+                if (++n == batch_size)
+                {
+                    batch_set.applyBatch(batch_keys, insertions, results);
+                    n = 0;
+                }
+            } else
+            {
+                if (n != 0)
+                {
+                    batch_set.applyBatch(Arrays.copyOf(batch_keys, n), insertions, results);
+                    n = 0;
+                }
+                op.execute();
+            }
+        }
+        if (n != 0)
+            batch_set.applyBatch(Arrays.copyOf(batch_keys, n), insertions, results);
     }
 
     /**
@@ -399,12 +870,13 @@ public final class SetTester
      * 
      * @param n_warmup number of warmup operations
      * @param n_ops number of timed operations
+     * @return snapshot after the timed operations
      */
-    public void runTimings(int n_warmup, int n_ops)
+    public ExecutionSnapshot runTimings(int n_warmup, int n_ops)
     {
         OpSequenceGenerator G = new OpSequenceGenerator();
         ExecutionSnapshot init_snapshot = timeRandomSequence(G, 0);
-        System.out.println("# Phase\t" + init_snapshot.headerString()+"\t// "+test_set.getClass().getCanonicalName());
+        System.out.println("# Phase\t" + init_snapshot.headerString()+"\t// "+test_set.getClass().getCanonicalName()+", "+init_snapshot.memorySource());
         System.out.println("init\t" + init_snapshot);
         ExecutionSnapshot warmup_snapshot = timeRandomSequence(G, n_warmup);
         System.out.println("warmup\t" + warmup_snapshot);
@@ -412,8 +884,232 @@ public final class SetTester
         System.out.println("exec\t" + exec_snapshot); // useful for time
         G = new OpSequenceGenerator();
         ExecutionSnapshot final_snapshot = timeRandomSequence(G, 0);
-        System.out.println("final\t" + final_snapshot); // gives proper memory usage (without the priority queue in the generator)
+        System.out.println("final\t" + final_snapshot); // heap usage without the priority queue in the generator, for sets without a footprint
         this.test_set.clear();
+        return exec_snapshot;
+    }
+
+    /**
+     * Instantiates the tested implementation.
+     * 
+     * @param engine one of <code>hash</code> ({@link HashSet}), <code>cuckoo</code> ({@link CuckooHashingSet}), 
+     *  <code>blocked</code> ({@link BlockedCuckooHashingSet}), 
+     *  <code>adaptive</code> ({@link AdaptiveSet}), <code>segmented</code> ({@link SegmentedHashSet}), 
+     *  <code>dense</code> ({@link DenseIdSet}; {@link Long} keys only)
+     * @param ways number of tables for <code>cuckoo</code>
+     * @return empty set 
+     * @throws IllegalArgumentException for <code>linear</code>: {@link LinearProbing} cannot delete, 
+     *   and the simulated workloads always have deletions
+     */
+    static Set<Object> newTestSet(String engine, int ways)
+    {
+        if ("hash".equals(engine))
+            return new HashSet<>(2048, 0.5f);
+        else if ("cuckoo".equals(engine))
+            return new CuckooHashingSet(2048, ways);
+        else if ("linear".equals(engine))
+            throw new IllegalArgumentException("Engine 'linear' does not support deletions, which every workload has: use adaptive for linear probing with deletions.");
+        else if ("blocked".equals(engine))
+            return new BlockedCuckooHashingSet(2048);
+        else if ("adaptive".equals(engine))
+            return new AdaptiveSet();
+        else if ("segmented".equals(engine))
+            return new SegmentedHashSet();
+        else if ("dense".equals(engine))
+            return new DenseIdSet();
+        else
+            throw new IllegalArgumentException("Unknown engine '"+engine+"': use hash, cuckoo, blocked, adaptive, segmented or dense.");
+    }
+
+    /**
+     * Turns on statistics collection in the tested implementation.
+     * 
+     * @param test_set one of our own engines
+     * @return the statistics collector
+     * @throws IllegalArgumentException if the implementation does not collect statistics
+     */
+    private static HashingStatistics enableStatistics(Set<Object> test_set)
+    {
+        if (test_set instanceof CuckooHashingSet)
+            return ((CuckooHashingSet) test_set).enableStatistics();
+        else if (test_set instanceof LinearProbing)
+            return ((LinearProbing) test_set).enableStatistics();
+        else if (test_set instanceof BlockedCuckooHashingSet)
+            return ((BlockedCuckooHashingSet) test_set).enableStatistics();
+        else if (test_set instanceof SegmentedHashSet)
+            return ((SegmentedHashSet) test_set).enableStatistics();
+        else
+            throw new IllegalArgumentException("No statistics for "+test_set.getClass().getCanonicalName());
+    }
+
+    /**
+     * Runs this class in a new virtual machine, with the same virtual machine options,
+     * and reads the summary row that it writes (see {@link #writeSummaryRow(java.nio.file.Path, SetTester.ExecutionSnapshot, koekoeke.HashingStatistics) }). 
+     * The run is killed if it does not finish within the time limit. 
+     * 
+     * @param args command-line arguments for the run, without <code>-summary</code>
+     * @param timeout_sec time limit for the run
+     * @return fields of the summary row; null if the run timed out, empty if it failed
+     */
+    private static String[] runForked(List<String> args, long timeout_sec) throws IOException, InterruptedException
+    {
+        Path row_file = Files.createTempFile("SetTester", ".tsv");
+        try
+        {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(SetTester.class.getName());
+            command.add("-summary");
+            command.add(row_file.toString());
+            command.addAll(args);
+            Process runner = new ProcessBuilder(command).inheritIO().start();
+            if (!runner.waitFor(timeout_sec, TimeUnit.SECONDS))
+            {
+                runner.destroyForcibly();
+                runner.waitFor();
+                return null;
+            }
+            List<String> row = Files.readAllLines(row_file, StandardCharsets.UTF_8);
+            return row.isEmpty() ? new String[0] : row.get(0).split("\t");
+        } finally
+        {
+            Files.deleteIfExists(row_file);
+        }
+    }
+    
+    /**
+     * Copy of command-line arguments with some option values replaced. 
+     * 
+     * @param args command-line arguments
+     * @param option option name, such as <code>-keys</code>
+     * @param value new value; the option is added if it is not among the arguments
+     * @return modified arguments
+     */
+    private static List<String> withOption(List<String> args, String option, String value)
+    {
+        List<String> modified = new ArrayList<>(args);
+        int i = modified.indexOf(option);
+        if (i < 0 || i + 1 == modified.size())
+        {
+            modified.add(0, option);
+            modified.add(1, value);
+        } else
+            modified.set(i + 1, value);
+        return modified;
+    }
+
+    /**
+     * Runs the same workload with every {@link KeyDistribution}, and prints 
+     * the slowdown relative to sequential keys, together with rehash counts 
+     * and the longest probe and eviction sequences (for our own engines).
+     * Every distribution runs in its own virtual machine, with the same command-line 
+     * arguments except for the key distribution, so that one run cannot disturb the timing of the next. 
+     * A distribution that does not finish within the time limit (for instance, 
+     * because of endless rehashing) is reported as such, and its virtual machine is killed. 
+     * 
+     * @param args command-line arguments of this run, with <code>-keys all</code>
+     * @param timeout_sec time limit for one distribution
+     */
+    private static void compareKeyDistributions(String[] args, long timeout_sec) throws IOException, InterruptedException
+    {
+        StringBuilder summary = new StringBuilder("# Keys\ttime/op\tslowdown\trehashes\tfailed.inserts\tmax.probe\tmax.evictions\n");
+        double baseline_time = Double.NaN;
+        for (KeyDistribution keys: KeyDistribution.values())
+        {
+            String name = keys.name().toLowerCase();
+            System.out.println("# Keys: "+name);
+            String[] row = runForked(withOption(Arrays.asList(args), "-keys", name), timeout_sec);
+            
+            summary.append("# ").append(name);
+            if (row == null || row.length == 0)
+            {
+                summary.append(row != null ? "\tfailed" : "\ttimeout").append("\tNA\tNA\tNA\tNA\tNA");
+            } else
+            {
+                double time = Double.parseDouble(row[0]);
+                if (keys == KeyDistribution.SEQUENTIAL) baseline_time = time;
+                summary.append("\t").append(time);
+                summary.append("\t").append(time / baseline_time);
+                for (int j = 3; j <= 6; j++) // rehashes, failed inserts, longest probe and eviction chain
+                    summary.append("\t").append(row[j]);
+            }
+            summary.append("\n");
+        }
+        System.out.print(summary);
+    }
+    
+    /**
+     * Writes the summary row of a forked run (see {@link #runForked(java.util.List, long) }): 
+     * tab-separated time per operation, load factor, table bytes per element, 
+     * rehash count, failed insertion count, longest probe sequence, longest eviction chain, 
+     * and mean probe length. Unknown values are NA. 
+     * 
+     * @param file where the row is written
+     * @param exec_snapshot timing of the run
+     * @param stats null if statistics were not collected
+     */
+    private static void writeSummaryRow(Path file, ExecutionSnapshot exec_snapshot, HashingStatistics stats) throws IOException
+    {
+        StringBuilder row = new StringBuilder();
+        row.append(exec_snapshot.amortizedTime());
+        Footprint footprint = exec_snapshot.footprint;
+        if (footprint != null)
+        {
+            double overhead = footprint.overheadPerElement();
+            row.append("\t").append(footprint.occupied_slots / (double) footprint.total_slots);
+            row.append("\t").append(Double.isNaN(overhead) ? "NA" : Double.toString(overhead));
+        } else
+            row.append("\tNA\tNA");
+        if (stats != null)
+        {
+            row.append("\t").append(stats.getRehashCount());
+            row.append("\t").append(stats.getFailedInsertRehashCount());
+            row.append("\t").append(stats.getMaxProbeLength());
+            row.append("\t").append(stats.getMaxEvictionChainLength());
+            row.append("\t").append(stats.getMeanProbeLength());
+        } else
+            row.append("\tNA\tNA\tNA\tNA\tNA");
+        Files.write(file, Arrays.asList(row.toString()), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Runs the same workload with {@link CuckooHashingSet} for every possible number of tables, 
+     * and prints the trade-off between memory and probes: time per operation, 
+     * final load factor, table bytes per element, mean number of probes per search, and rehash count.
+     * Every number of tables runs twice, each time in its own virtual machine (as in {@link #compareKeyDistributions(java.lang.String[], long) }): 
+     * first for the timing and the memory, without statistics, 
+     * then with statistics for the probe and rehash counts. 
+     * 
+     * @param args command-line arguments of this run, with <code>-ways all</code>
+     * @param timeout_sec time limit for one run
+     */
+    private static void compareWays(String[] args, long timeout_sec) throws IOException, InterruptedException
+    {
+        StringBuilder summary = new StringBuilder("# Ways\ttime/op\tload\tarray/element\tmean.probe\trehashes\n");
+        List<String> cuckoo_args = withOption(Arrays.asList(args), "-engine", "cuckoo");
+        for (int ways = 2; ways <= CuckooHashingSet.MAX_TABLES; ways++)
+        {
+            List<String> run_args = withOption(cuckoo_args, "-ways", Integer.toString(ways));
+            System.out.println("# Ways: "+ways);
+            String[] timing = runForked(withOption(run_args, "-summarystats", "false"), timeout_sec);
+            System.out.println("# Ways: "+ways+" (statistics)");
+            String[] probes = runForked(withOption(run_args, "-summarystats", "true"), timeout_sec);
+            
+            summary.append("# ").append(ways);
+            if (timing == null || timing.length == 0)
+                summary.append(timing != null ? "\tfailed" : "\ttimeout").append("\tNA\tNA");
+            else
+                summary.append("\t").append(timing[0]).append("\t").append(timing[1]).append("\t").append(timing[2]);
+            if (probes == null || probes.length == 0)
+                summary.append("\tNA\tNA");
+            else
+                summary.append("\t").append(probes[7]).append("\t").append(probes[3]);
+            summary.append("\n");
+        }
+        System.out.print(summary);
     }
 
     public static void main(String[] args) throws Exception
@@ -431,6 +1127,18 @@ public final class SetTester
         int num_ops = 0;
         int num_warmup_ops = -1;
         double cv = 0.0;
+        String engine = "hash";
+        String ways = "2";
+        int batch_size = 0;
+        double reads = 0.0;
+        double hits = 1.0;
+        double zipf = 0.0;
+        double hotset = 0.0;
+        String stats_name = null;
+        String key_distribution = KeyDistribution.SEQUENTIAL.name();
+        long timeout_sec = 60L;
+        Path summary_file = null;
+        boolean summary_stats = true;
 
         while ((arg_idx < args.length) && (args[arg_idx].startsWith("-")))
         {
@@ -456,6 +1164,44 @@ public final class SetTester
             } else if ("-warmup".equals(arg))
             {
                 num_warmup_ops = Integer.parseInt(val);
+            } else if ("-engine".equals(arg))
+            {
+                engine = val;
+            } else if ("-batch".equals(arg))
+            {
+                batch_size = Integer.parseInt(val);
+            } else if ("-ways".equals(arg))
+            {
+                ways = val;
+            } else if ("-reads".equals(arg))
+            {
+                reads = Double.parseDouble(val);
+            } else if ("-hits".equals(arg))
+            {
+                hits = Double.parseDouble(val);
+            } else if ("-zipf".equals(arg))
+            {
+                zipf = Double.parseDouble(val);
+            } else if ("-hotset".equals(arg))
+            {
+                hotset = Double.parseDouble(val);
+            } else if ("-stats".equals(arg))
+            {
+                stats_name = val;
+            } else if ("-keys".equals(arg))
+            {
+                key_distribution = val;
+            } else if ("-timeout".equals(arg))
+            {
+                timeout_sec = Long.parseLong(val);
+            } else if ("-summary".equals(arg))
+            {
+                // used by runForked
+                summary_file = Paths.get(val);
+            } else if ("-summarystats".equals(arg))
+            {
+                // whether the summary row has statistics; used by compareWays
+                summary_stats = Boolean.parseBoolean(val);
             }
         }
         if (arg_idx == args.length)
@@ -473,14 +1219,53 @@ public final class SetTester
         double ins_rate = (1.0-dup_rate)*exp_size;
         
         if (num_warmup_ops < 0)
-          num_warmup_ops = (int)(2.0 * exp_size);
+          num_warmup_ops = (int)(2.0 * exp_size / (1.0 - reads)); // enough updates to reach the stationary size
         if (num_ops == 0) 
             num_ops = 1000000;
 
-        Set<Object> trythis =  new HashSet<>(2048, 0.5f); //new koekoeke.CuckooHashingSet(2048); //
+        if ("all".equals(key_distribution))
+        {
+            if ("all".equals(ways))
+                throw new IllegalArgumentException("Cannot combine -keys all with -ways all: compare the number of tables for one key distribution at a time");
+            compareKeyDistributions(args, timeout_sec);
+            return;
+        }
+        
+        if ("all".equals(ways))
+        {
+            compareWays(args, timeout_sec);
+            return;
+        }
+        
+        Set<Object> trythis = newTestSet(engine, Integer.parseInt(ways));
+        HashingStatistics stats = null;
+        if (stats_name != null)
+        {
+            stats = enableStatistics(trythis);
+            stats.registerMBean(stats_name);
+        } else if (summary_file != null && summary_stats && !(trythis instanceof HashSet || trythis instanceof AdaptiveSet || trythis instanceof DenseIdSet))
+        {
+            stats = enableStatistics(trythis);
+        }
         SetTester tester = new SetTester(trythis, ins_rate, dup_rate, seed);
+        tester.setLookupMix(reads, hits);
+        if (zipf != 0.0)
+            tester.setZipfPopularity(zipf);
+        else if (hotset != 0.0)
+            tester.setHotSetPopularity(hotset);
+        tester.setKeyGenerator(KeyDistribution.forName(key_distribution));
+        tester.setBatchSize(batch_size);
 //        System.out.println("#Test: mean size "+tester.sizeMean()+", variance "+tester.sizeVariance()+", sd "+Math.sqrt(tester.sizeVariance())+"; ins "+ins_rate+", dup "+dup_rate);
 
-        tester.runTimings(num_warmup_ops, num_ops);
+        ExecutionSnapshot exec_snapshot = tester.runTimings(num_warmup_ops, num_ops);
+        if (summary_file != null)
+            writeSummaryRow(summary_file, exec_snapshot, stats);
+        if (stats != null)
+            System.out.println("# Statistics: "+stats);
+        if (trythis instanceof AdaptiveSet)
+        {
+            AdaptiveSet adaptive = (AdaptiveSet) trythis;
+            System.out.println("# Adaptive: engine "+adaptive.engine()+", migrations "+adaptive.getMigrationCount());
+        }
     }    
 }
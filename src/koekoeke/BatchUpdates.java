@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+/**
+ * Insertions and deletions applied in blocks. Implementations reorder 
+ * the operations by the table region they touch (radix partitioning 
+ * by hash), so that consecutive operations hit the same part of a large table, 
+ * instead of an independent cache miss each. Operations on equal keys 
+ * stay in their original order, so the results are the same as with 
+ * sequential execution. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public interface BatchUpdates 
+{
+    /**
+     * Applies a block of insertions and deletions. 
+     * 
+     * @param keys operands; keys[i] is added if insertions[i], removed otherwise
+     * @param insertions kind of each operation; same length as keys (or longer)
+     * @param results filled with the results: results[i] is what {@link java.util.Set#add(java.lang.Object) } or 
+     *      {@link java.util.Set#remove(java.lang.Object) } would have returned for keys[i] in sequential execution; same length as keys (or longer)
+     * @return number of operations that changed the set
+     */
+    int applyBatch(Object[] keys, boolean[] insertions, boolean[] results);
+    
+    /**
+     * Stable counting sort of operation indices by region.
+     * 
+     * @param regions region of each operation, between 0 and num_regions-1
+     * @param num_regions number of regions
+     * @return indices 0,1,...,regions.length-1 ordered by region, and by index within a region
+     */
+    static int[] partitionOrder(int[] regions, int num_regions)
+    {
+        int[] order = new int[regions.length];
+        if (num_regions == 1)
+        {
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            return order;
+        }
+        int[] start = new int[num_regions + 1];
+        for (int r: regions) start[r + 1]++;
+        for (int r = 0; r < num_regions; r++) start[r + 1] += start[r];
+        for (int i = 0; i < regions.length; i++)
+            order[start[regions[i]]++] = i;
+        return order;
+    }
+}
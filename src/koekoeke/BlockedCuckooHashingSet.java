@@ -0,0 +1,458 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Cache-conscious variant of cuckoo hashing with a single table, divided 
+ * into blocks of {@value #BLOCK_SIZE} cells. An element may sit in any cell of its 
+ * primary block, or of its secondary block; the secondary block 
+ * is among the next {@value #NEIGHBORHOOD_BLOCKS} blocks (a few cache lines, 
+ * usually within the same memory page), at a hash-dependent offset.
+ * A search examines at most two nearby blocks, and an eviction 
+ * moves an element between two nearby blocks. 
+ * The table holds only the element references, so that a search touches 
+ * no memory besides the two blocks and the compared elements. 
+ * Null elements are not supported. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class BlockedCuckooHashingSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint, RawCells
+{
+    /**
+     * Number of cells in a block.
+     */
+    private static final int BLOCK_SIZE = 8;
+    /**
+     * The secondary block is less than this many blocks after the primary block (512 bytes of references with compressed pointers).
+     */
+    private static final int NEIGHBORHOOD_BLOCKS = 16;
+    /**
+     * Maximum load factor: with 2 blocks of 8 cells, 
+     * cuckoo hashing works up to about 0.95 load, less with the 
+     * neighborhood constraint.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.85;
+    private static final double MIN_LOAD_FACTOR = 0.10;
+    private static final int DEFAULT_CAPACITY = 1 << 10;
+    /**
+     * Maximum number of evictions in an insertion before rehashing.
+     */
+    private static final int MAX_KICKS = 128;
+    /**
+     * Number of failed rehashes at the same capacity before growing the table.
+     */
+    private static final int MAX_REHASH_ATTEMPTS = 4;
+    
+    /**
+     * Elements; null for empty cells.
+     */
+    private Object[] cells;
+    /**
+     * Number of bits in the block index.
+     */
+    private int block_bits;
+    private int seed;
+    private int size;
+    private final Random RND = new Random();
+    /**
+     * Statistics collector; null when disabled.
+     */
+    private HashingStatistics statistics = null;
+    
+    public BlockedCuckooHashingSet()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+    
+    /**
+     * Instantiation with a given initial capacity. 
+     * 
+     * @param requested_capacity number of cells, rounded up to a power of 2
+     */
+    public BlockedCuckooHashingSet(int requested_capacity)
+    {
+        allocate(blockBits(requested_capacity));
+    }
+    
+    /**
+     * Number of block index bits for a capacity.
+     * 
+     * @param capacity minimum number of cells
+     * @return at least 1
+     */
+    private static int blockBits(int capacity)
+    {
+        int b = 1;
+        while ((BLOCK_SIZE << b) < capacity) b++;
+        return b;
+    }
+    
+    private void allocate(int block_bits)
+    {
+        this.block_bits = block_bits;
+        this.cells = new Object[BLOCK_SIZE << block_bits];
+        this.seed = RND.nextInt();
+        this.size = 0;
+    }
+    
+    /**
+     * Starts collecting statistics about rehashes, lookups and evictions.
+     * 
+     * @return the statistics collector (same as before if already enabled)
+     */
+    public HashingStatistics enableStatistics()
+    {
+        if (statistics == null)
+            statistics = new HashingStatistics();
+        return statistics;
+    }
+    
+    /**
+     * Stops collecting statistics.
+     */
+    public void disableStatistics()
+    {
+        statistics = null;
+    }
+    
+    /**
+     * Current statistics collector.
+     * 
+     * @return null if statistics are disabled
+     */
+    public HashingStatistics getStatistics()
+    {
+        return statistics;
+    }
+    
+    /**
+     * Scrambled hash value (MurmurHash3 finalizer of the seeded hash code).
+     * 
+     * @param o non-null element
+     * @return tag for the element
+     */
+    private int tag(Object o)
+    {
+        int h = o.hashCode() ^ seed;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    /**
+     * First cell of the primary block.
+     * 
+     * @param tag scrambled hash value
+     * @return cell index
+     */
+    private int primaryBlock(int tag)
+    {
+        return (tag >>> (32 - block_bits)) * BLOCK_SIZE;
+    }
+    
+    /**
+     * First cell of the secondary block: a nonzero number of blocks 
+     * after the primary one, less than the neighborhood size (wrapping around at the end of the table). 
+     * Neighborhoods slide with the primary block, so that load is balanced between 
+     * consecutive groups of blocks. 
+     * 
+     * @param tag scrambled hash value
+     * @return cell index
+     */
+    private int secondaryBlock(int tag)
+    {
+        int num_blocks = 1 << block_bits;
+        int neighborhood = Math.min(NEIGHBORHOOD_BLOCKS, num_blocks);
+        int delta = 1 + (tag & 0xffff) % (neighborhood - 1);
+        int b = ((tag >>> (32 - block_bits)) + delta) & (num_blocks - 1);
+        return b * BLOCK_SIZE;
+    }
+    
+    /**
+     * The other candidate block for an element. 
+     * 
+     * @param block first cell of primary or secondary block 
+     * @param tag scrambled hash value
+     * @return first cell of secondary or primary block
+     */
+    private int alternateBlock(int block, int tag)
+    {
+        int b1 = primaryBlock(tag);
+        return (block == b1) ? secondaryBlock(tag) : b1;
+    }
+    
+    /**
+     * Cell holding an element in a block. 
+     * 
+     * @param block first cell of the block
+     * @param o non-null element
+     * @return cell index, or -1 if not in this block
+     */
+    private int findInBlock(int block, Object o)
+    {
+        for (int j = block; j < block + BLOCK_SIZE; j++)
+        {
+            Object x = cells[j];
+            if (x != null && (x == o || x.equals(o)))
+                return j;
+        }
+        return -1;
+    }
+    
+    /**
+     * Free cell in a block.
+     * 
+     * @param block first cell of the block
+     * @return cell index, or -1 if the block is full
+     */
+    private int freeCell(int block)
+    {
+        for (int j = block; j < block + BLOCK_SIZE; j++)
+            if (cells[j] == null) return j;
+        return -1;
+    }
+    
+    /**
+     * Cell holding an element. 
+     * 
+     * @param o non-null element 
+     * @return cell index, or -1 if not in the set 
+     */
+    private int find(Object o)
+    {
+        int t = tag(o);
+        int b1 = primaryBlock(t);
+        int j = findInBlock(b1, o);
+        if (j < 0)
+        {
+            j = findInBlock(secondaryBlock(t), o);
+            if (statistics != null) statistics.recordProbeLength(2);
+        } else if (statistics != null) statistics.recordProbeLength(1);
+        return j;
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        return o != null && find(o) >= 0;
+    }
+    
+    @Override
+    public boolean add(Object x)
+    {
+        if (x == null) throw new UnsupportedOperationException("Cannot add null element in this implementation.");
+        if (find(x) >= 0) return false;
+        insert(x);
+        if (size > MAX_LOAD_FACTOR * cells.length)
+            rehash(1, HashingStatistics.RehashCause.GROWTH);
+        return true;
+    }
+    
+    /**
+     * Insertion of an element that is not in the set, 
+     * rehashing if necessary.
+     * 
+     * @param x new element
+     */
+    private void insert(Object x)
+    {
+        Object homeless = place(x);
+        while (homeless != null)
+        {
+            rehash(0, HashingStatistics.RehashCause.FAILED_INSERT);
+            homeless = place(homeless);
+        }
+    }
+    
+    /**
+     * Puts an element into one of its blocks, evicting others by random walk if necessary.
+     * 
+     * @param x element not in the set
+     * @return null on success, or the element left without a cell 
+     */
+    private Object place(Object x)
+    {
+        Object y = x;
+        int t = tag(y);
+        int b = primaryBlock(t);
+        int j = freeCell(b);
+        if (j < 0)
+        {
+            b = alternateBlock(b, t);
+            j = freeCell(b);
+        }
+        int num_evictions = 0;
+        while (j < 0 && num_evictions < MAX_KICKS)
+        {
+            // evict a random element from the current block, and move it to its other block
+            j = b + RND.nextInt(BLOCK_SIZE);
+            Object evicted = cells[j];
+            cells[j] = y;
+            y = evicted;
+            t = tag(y);
+            b = alternateBlock(b, t);
+            j = freeCell(b);
+            num_evictions++;
+        }
+        if (j < 0) return y;
+        cells[j] = y;
+        size++;
+        if (statistics != null) statistics.recordEvictionChain(num_evictions);
+        return null;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        if (o == null) return false;
+        int j = find(o);
+        if (j < 0) return false;
+        cells[j] = null;
+        size--;
+        if (cells.length > DEFAULT_CAPACITY && size < MIN_LOAD_FACTOR * cells.length)
+            rehash(-1, HashingStatistics.RehashCause.SHRINK);
+        return true;
+    }
+    
+    /**
+     * Reallocates the table with a new hash seed and reinserts the elements 
+     * directly from the old arrays. 
+     * 
+     * @param block_bits_delta +1 for doubling, 0 for reseeding, -1 for halving
+     * @param cause reason for rehashing, recorded in the statistics
+     */
+    private void rehash(int block_bits_delta, HashingStatistics.RehashCause cause)
+    {
+        long T0 = (statistics == null ? 0L : System.nanoTime());
+        Object[] old_cells = cells;
+        int new_block_bits = block_bits + block_bits_delta;
+        HashingStatistics saved_statistics = statistics;
+        statistics = null; // do not count reinsertions
+        int attempt = 0;
+        boolean all_placed;
+        do
+        {
+            if (attempt == MAX_REHASH_ATTEMPTS)
+            {
+                new_block_bits++;
+                attempt = 0;
+            }
+            allocate(new_block_bits);
+            all_placed = true;
+            for (int i = 0; i < old_cells.length && all_placed; i++)
+                if (old_cells[i] != null)
+                    all_placed = (place(old_cells[i]) == null);
+            attempt++;
+        } while (!all_placed);
+        statistics = saved_statistics;
+        if (statistics != null)
+            statistics.recordRehash(cause, System.nanoTime() - T0);
+    }
+    
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    
+    @Override
+    public void clear()
+    {
+        allocate(blockBits(DEFAULT_CAPACITY));
+    }
+    
+    /**
+     * Fraction of occupied cells.
+     * 
+     * @return value between 0 and {@link #MAX_LOAD_FACTOR}
+     */
+    public double loadFactor()
+    {
+        return size / ((double) cells.length);
+    }
+    
+    @Override
+    public Footprint footprint()
+    {
+        long array_bytes = Footprint.referenceArrayBytes(cells.length);
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), size, Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(array_bytes, key_bytes, size, cells.length);
+    }
+
+    @Override
+    public Object[][] cellArrays()
+    {
+        return new Object[][]{cells};
+    }
+
+    @Override
+    public Object emptyCell()
+    {
+        return null;
+    }
+    
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private final Object[] iterated_cells = cells;
+            private int cell_idx = 0;
+            
+            {
+                forwardToNext();
+            }
+            
+            private void forwardToNext()
+            {
+                while (cell_idx < iterated_cells.length && iterated_cells[cell_idx] == null)
+                    cell_idx++;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return cell_idx < iterated_cells.length;
+            }
+
+            @Override
+            public Object next()
+            {
+                if (cell_idx >= iterated_cells.length) throw new NoSuchElementException();
+                Object x = iterated_cells[cell_idx++];
+                forwardToNext();
+                return x;
+            }
+        };
+    }
+}
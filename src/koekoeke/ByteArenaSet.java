@@ -0,0 +1,612 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Set of byte strings stored in a contiguous arena. 
+ * Every key is copied into the arena once, preceded by its length; 
+ * the hash table is a <code>long[]</code> with linear probing, 
+ * where each slot holds the arena offset and the 32-bit hash of the key. 
+ * There are no per-key objects: a key costs its bytes, 4 bytes of length and 
+ * a slot of 8 bytes divided by the load factor, and the garbage collector 
+ * sees two arrays only (or one, if the arena is off-heap). 
+ * Comparisons start with the hash in the slot, and read the arena only on 
+ * hash equality. 
+ * 
+ * Keys are given as <code>byte[]</code> (with or without range), {@link ByteBuffer} 
+ * (the remaining bytes; position is not changed), or {@link CharSequence}, which is 
+ * identified with its UTF-8 encoding. A character sequence is encoded into a reusable 
+ * buffer, so lookups by {@link String} or {@link StringBuilder} do not allocate. 
+ * The {@link Set} view iterates over read-only {@link ByteBuffer} views of the arena, 
+ * which are equal to byte buffers with the same content. 
+ * 
+ * Deleted keys leave garbage in the arena, which is compacted when it outgrows the live keys. 
+ * The arena is limited to 2 GB. Null elements are not supported. 
+ * Instances are not thread-safe (lookups share the encoding buffer). 
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class ByteArenaSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint
+{
+    private static final float MAX_LOAD_FACTOR = 0.7f;
+    private static final int DEFAULT_CAPACITY = 1<<10;
+    private static final int DEFAULT_ARENA_BYTES = 1<<14;
+    /**
+     * Arena offset of the first key; offset 0 is never used, so that the slot value 0 denotes an empty slot. 
+     */
+    private static final int ARENA_START = 8;
+    
+    public ByteArenaSet()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_ARENA_BYTES, false);
+    }
+    
+    /**
+     * Instantiation with given initial sizes. 
+     * 
+     * @param initial_capacity initial number of slots (rounded up to a power of 2)
+     * @param initial_arena_bytes initial arena size
+     * @param off_heap whether the arena is allocated outside the Java heap ({@link ByteBuffer#allocateDirect(int) })
+     */
+    public ByteArenaSet(int initial_capacity, int initial_arena_bytes, boolean off_heap)
+    {
+        int cap = 16;
+        while (cap < initial_capacity) cap *= 2;
+        this.initial_capacity = cap;
+        this.initial_arena_bytes = Math.max(initial_arena_bytes, 2*ARENA_START);
+        this.off_heap = off_heap;
+        this.slots = new long[this.initial_capacity];
+        this.arena = allocateArena(this.initial_arena_bytes);
+        this.arena_end = ARENA_START;
+    }
+    
+    /**
+     * Table and arena sizes from instantiation, restored by {@link #clear() }.
+     */
+    private final int initial_capacity;
+    private final int initial_arena_bytes;
+    private final boolean off_heap;
+    /**
+     * Hash table: arena offset in the high 32 bits, key hash in the low 32 bits; 0 for empty.
+     */
+    private long[] slots;
+    private int size = 0;
+    private ByteBuffer arena;
+    /**
+     * First free byte in the arena.
+     */
+    private int arena_end;
+    /**
+     * Bytes of deleted keys in the arena.
+     */
+    private long garbage_bytes = 0L;
+    /**
+     * Reusable buffer for encoding character sequences.
+     */
+    private byte[] scratch = new byte[64];
+    
+    private ByteBuffer allocateArena(int capacity)
+    {
+        return off_heap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    
+    /**
+     * Hash value scrambling (MurmurHash3 finalizer).
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    private static int hash(byte[] key, int off, int len)
+    {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++)
+            h = (h ^ (key[i] & 0xff)) * 0x01000193; // FNV-1a
+        return mix(h);
+    }
+    
+    private static int hash(ByteBuffer key, int off, int len)
+    {
+        int h = 0x811c9dc5;
+        for (int i = off; i < off + len; i++)
+            h = (h ^ (key.get(i) & 0xff)) * 0x01000193; 
+        return mix(h);
+    }
+    
+    private int tableIndex(int h)
+    {
+        return h & (slots.length - 1);
+    }
+    
+    private static int offsetOf(long slot)
+    {
+        return (int) (slot >>> 32);
+    }
+    
+    private static long slot(int offset, int h)
+    {
+        return ((long) offset << 32) | (h & 0xffffffffL);
+    }
+    
+    /**
+     * Search for a key given as an array range.
+     * 
+     * @return slot index where found, or where it should be placed on insertion
+     */
+    private int search(byte[] key, int off, int len, int h)
+    {
+        int i = tableIndex(h);
+        long slot;
+        while ((slot = slots[i]) != 0L)
+        {
+            if ((int) slot == h && sameBytes(offsetOf(slot), key, off, len))
+                break;
+            i = (i + 1) & (slots.length - 1);
+        }
+        return i;
+    }
+    
+    private boolean sameBytes(int arena_offset, byte[] key, int off, int len)
+    {
+        if (arena.getInt(arena_offset) != len) return false;
+        int a = arena_offset + 4;
+        for (int j = 0; j < len; j++)
+            if (arena.get(a + j) != key[off + j]) return false;
+        return true;
+    }
+    
+    private int search(ByteBuffer key, int off, int len, int h)
+    {
+        int i = tableIndex(h);
+        long slot;
+        while ((slot = slots[i]) != 0L)
+        {
+            if ((int) slot == h && sameBytes(offsetOf(slot), key, off, len))
+                break;
+            i = (i + 1) & (slots.length - 1);
+        }
+        return i;
+    }
+    
+    private boolean sameBytes(int arena_offset, ByteBuffer key, int off, int len)
+    {
+        if (arena.getInt(arena_offset) != len) return false;
+        int a = arena_offset + 4;
+        for (int j = 0; j < len; j++)
+            if (arena.get(a + j) != key.get(off + j)) return false;
+        return true;
+    }
+    
+    /**
+     * Encodes a character sequence as UTF-8 into {@link #scratch}; unpaired surrogates become '?'.
+     * 
+     * @return number of bytes 
+     */
+    private int encode(CharSequence s)
+    {
+        int len = s.length();
+        if (scratch.length < 3 * len) scratch = new byte[Math.max(3 * len, 2 * scratch.length)];
+        byte[] b = scratch;
+        int n = 0;
+        for (int i = 0; i < len; i++)
+        {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                b[n++] = (byte) c;
+            else if (c < 0x800)
+            {
+                b[n++] = (byte) (0xc0 | (c >> 6));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i+1)))
+            {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b[n++] = (byte) (0xf0 | (cp >> 18));
+                b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c))
+                b[n++] = (byte) '?';
+            else
+            {
+                b[n++] = (byte) (0xe0 | (c >> 12));
+                b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+    
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Membership test for an array range.
+     * 
+     * @param key byte array
+     * @param off first byte of the key
+     * @param len key length
+     * @return whether the key is in the set
+     */
+    public boolean contains(byte[] key, int off, int len)
+    {
+        return slots[search(key, off, len, hash(key, off, len))] != 0L;
+    }
+    
+    /**
+     * Membership test for the remaining bytes of a buffer.
+     * 
+     * @param key not modified
+     * @return whether the key is in the set
+     */
+    public boolean contains(ByteBuffer key)
+    {
+        int off = key.position();
+        int len = key.remaining();
+        return slots[search(key, off, len, hash(key, off, len))] != 0L;
+    }
+    
+    /**
+     * Membership test for the UTF-8 encoding of a character sequence.
+     * 
+     * @param key characters
+     * @return whether the key is in the set
+     */
+    public boolean contains(CharSequence key)
+    {
+        int len = encode(key);
+        return contains(scratch, 0, len);
+    }
+    
+    /**
+     * Membership test for byte arrays, byte buffers and character sequences.
+     * 
+     * @param o any object
+     * @return false for other types, and for null
+     */
+    @Override
+    public boolean contains(Object o)
+    {
+        if (o instanceof byte[]) 
+        {
+            byte[] key = (byte[]) o;
+            return contains(key, 0, key.length);
+        }
+        if (o instanceof ByteBuffer) return contains((ByteBuffer) o);
+        if (o instanceof CharSequence) return contains((CharSequence) o);
+        return false;
+    }
+    
+    /**
+     * Insertion of an array range. 
+     * 
+     * @param key byte array; copied into the arena
+     * @param off first byte of the key
+     * @param len key length
+     * @return true if the key was not in the set yet
+     */
+    public boolean add(byte[] key, int off, int len)
+    {
+        int h = hash(key, off, len);
+        int i = search(key, off, len, h);
+        if (slots[i] != 0L) return false;
+        int offset = reserve(len);
+        arena.putInt(offset, len);
+        for (int j = 0; j < len; j++)
+            arena.put(offset + 4 + j, key[off + j]);
+        insertAt(i, offset, h);
+        return true;
+    }
+    
+    /**
+     * Insertion of the remaining bytes of a buffer.
+     * 
+     * @param key not modified; copied into the arena
+     * @return true if the key was not in the set yet
+     */
+    public boolean add(ByteBuffer key)
+    {
+        int off = key.position();
+        int len = key.remaining();
+        int h = hash(key, off, len);
+        int i = search(key, off, len, h);
+        if (slots[i] != 0L) return false;
+        int offset = reserve(len);
+        arena.putInt(offset, len);
+        for (int j = 0; j < len; j++)
+            arena.put(offset + 4 + j, key.get(off + j));
+        insertAt(i, offset, h);
+        return true;
+    }
+    
+    /**
+     * Insertion of the UTF-8 encoding of a character sequence.
+     * 
+     * @param key characters
+     * @return true if the key was not in the set yet
+     */
+    public boolean add(CharSequence key)
+    {
+        int len = encode(key);
+        return add(scratch, 0, len);
+    }
+    
+    /**
+     * Insertion of a byte array, byte buffer or character sequence. 
+     * 
+     * @param o key
+     * @return true if the key was not in the set yet
+     * @throws IllegalArgumentException for other types
+     */
+    @Override
+    public boolean add(Object o)
+    {
+        if (o instanceof byte[]) 
+        {
+            byte[] key = (byte[]) o;
+            return add(key, 0, key.length);
+        }
+        if (o instanceof ByteBuffer) return add((ByteBuffer) o);
+        if (o instanceof CharSequence) return add((CharSequence) o);
+        if (o == null) throw new UnsupportedOperationException("Cannot add null element in this implementation.");
+        throw new IllegalArgumentException("Keys must be byte[], ByteBuffer or CharSequence: "+o.getClass().getCanonicalName());
+    }
+    
+    /**
+     * Removal of an array range.
+     * 
+     * @param key byte array
+     * @param off first byte of the key
+     * @param len key length
+     * @return true if the key was in the set
+     */
+    public boolean remove(byte[] key, int off, int len)
+    {
+        int i = search(key, off, len, hash(key, off, len));
+        if (slots[i] == 0L) return false;
+        removeAt(i);
+        return true;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        int i;
+        if (o instanceof byte[])
+        {
+            byte[] key = (byte[]) o;
+            return remove(key, 0, key.length);
+        } else if (o instanceof ByteBuffer)
+        {
+            ByteBuffer key = (ByteBuffer) o;
+            int off = key.position();
+            int len = key.remaining();
+            i = search(key, off, len, hash(key, off, len));
+        } else if (o instanceof CharSequence)
+        {
+            int len = encode((CharSequence) o);
+            return remove(scratch, 0, len);
+        } else 
+            return false;
+        if (slots[i] == 0L) return false;
+        removeAt(i);
+        return true;
+    }
+    
+    @Override
+    public void clear()
+    {
+        this.slots = new long[initial_capacity];
+        this.arena = allocateArena(initial_arena_bytes);
+        this.arena_end = ARENA_START;
+        this.garbage_bytes = 0L;
+        this.size = 0;
+    }
+    
+    /**
+     * Space at the end of the arena for a new key, with its length.
+     * 
+     * @param len key length
+     * @return offset of the key's length in the arena
+     */
+    private int reserve(int len)
+    {
+        long needed = (long) arena_end + 4L + len;
+        if (needed > arena.capacity())
+        {
+            if (garbage_bytes > (arena_end - garbage_bytes))
+                compact();
+            needed = (long) arena_end + 4L + len;
+            if (needed > arena.capacity())
+            {
+                long grown = Math.max(needed, 2L * arena.capacity());
+                if (grown > Integer.MAX_VALUE - 8)
+                {
+                    if (needed > Integer.MAX_VALUE - 8)
+                        throw new IllegalStateException("Arena is full");
+                    grown = Integer.MAX_VALUE - 8;
+                }
+                ByteBuffer bigger = allocateArena((int) grown);
+                ByteBuffer old = arena.duplicate();
+                old.position(0).limit(arena_end);
+                bigger.put(old);
+                arena = bigger;
+            }
+        }
+        int offset = arena_end;
+        arena_end += 4 + len;
+        return offset;
+    }
+    
+    /**
+     * Copies the live keys to the beginning of the arena, in slot order, and updates the slots.
+     */
+    private void compact()
+    {
+        ByteBuffer fresh = allocateArena(arena.capacity());
+        int end = ARENA_START;
+        for (int i = 0; i < slots.length; i++)
+        {
+            long slot = slots[i];
+            if (slot == 0L) continue;
+            int offset = offsetOf(slot);
+            int entry_len = 4 + arena.getInt(offset);
+            ByteBuffer entry = arena.duplicate();
+            entry.position(offset).limit(offset + entry_len);
+            fresh.position(end);
+            fresh.put(entry);
+            slots[i] = slot(end, (int) slot);
+            end += entry_len;
+        }
+        this.arena = fresh;
+        this.arena_end = end;
+        this.garbage_bytes = 0L;
+    }
+    
+    private void insertAt(int i, int offset, int h)
+    {
+        slots[i] = slot(offset, h);
+        size++;
+        if (size > MAX_LOAD_FACTOR * slots.length)
+            rehash();
+    }
+    
+    /**
+     * Doubles the table; keys stay where they are in the arena.
+     */
+    private void rehash()
+    {
+        long[] old_slots = slots;
+        slots = new long[2 * old_slots.length];
+        for (long slot: old_slots)
+            if (slot != 0L)
+            {
+                int i = tableIndex((int) slot);
+                while (slots[i] != 0L) i = (i + 1) & (slots.length - 1);
+                slots[i] = slot;
+            }
+    }
+    
+    /**
+     * Empties a slot, and shifts back the slots of the run that follow 
+     * (Knuth's Algorithm R). 
+     */
+    private void removeAt(int i)
+    {
+        garbage_bytes += 4 + arena.getInt(offsetOf(slots[i]));
+        int mask = slots.length - 1;
+        int hole = i;
+        int j = i;
+        while (true)
+        {
+            j = (j + 1) & mask;
+            long slot = slots[j];
+            if (slot == 0L) break;
+            int home = tableIndex((int) slot);
+            if (((j - home) & mask) >= ((j - hole) & mask))
+            {
+                slots[hole] = slot;
+                hole = j;
+            }
+        }
+        slots[hole] = 0L;
+        size--;
+        if (size == 0)
+        {
+            arena_end = ARENA_START;
+            garbage_bytes = 0L;
+        }
+    }
+    
+    /**
+     * Memory usage of the slot table and the arena (all keys are inside the arena).
+     * 
+     * @return footprint of the set 
+     */
+    @Override
+    public Footprint footprint()
+    {
+        long array_bytes = Footprint.primitiveArrayBytes(slots.length, 8);
+        long arena_bytes = off_heap ? arena.capacity() : Footprint.primitiveArrayBytes(arena.capacity(), 1);
+        return new Footprint(array_bytes, arena_bytes, size, slots.length);
+    }
+    
+    /**
+     * Iterator over read-only views of the keys in the arena. 
+     * The views are valid until the next modification of the set.
+     * 
+     * @return iterator over {@link ByteBuffer}s 
+     */
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private int slot_idx = -1;
+            {
+                advance();
+            }
+            
+            private void advance()
+            {
+                do
+                {
+                    slot_idx++;
+                } while (slot_idx < slots.length && slots[slot_idx] == 0L);
+            }
+            
+            @Override
+            public boolean hasNext()
+            {
+                return slot_idx < slots.length;
+            }
+            
+            @Override
+            public Object next()
+            {
+                if (!hasNext()) throw new NoSuchElementException();
+                int offset = offsetOf(slots[slot_idx]);
+                int len = arena.getInt(offset);
+                ByteBuffer view = arena.asReadOnlyBuffer();
+                view.position(offset + 4).limit(offset + 4 + len);
+                advance();
+                return view.slice();
+            }
+        };
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Memory-lean set for the common case of a few elements. 
+ * Nothing is allocated until the first insertion; up to {@value #INLINE_CAPACITY} 
+ * elements are kept in a small array that is scanned linearly, and grown 
+ * one power of two at a time. Past that threshold, the elements are moved 
+ * into a {@link CuckooHashingSet}, and back into an array when deletions 
+ * bring the size down to half the threshold. 
+ * An empty set costs one object with a few fields, and a set with 
+ * a handful of elements an additional array of a few references. 
+ * 
+ * Null elements are permitted.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class CompactSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint
+{
+    /**
+     * Maximum number of elements in the linearly scanned array.
+     */
+    private static final int INLINE_CAPACITY = 8;
+    
+    public CompactSet()
+    {
+    }
+    
+    /**
+     * Elements in the first {@link #inline_size} cells; null before the first insertion, 
+     * or after promotion to a hash table.
+     */
+    private Object[] inline = null;
+    private int inline_size = 0;
+    /**
+     * Hash table for large sets; null while small.
+     */
+    private CuckooHashingSet table = null;
+    /**
+     * Number of structural changes to the inline array, for fail-fast iterators.
+     */
+    private int mod_count = 0;
+    
+    /**
+     * Index of an element in the inline array. 
+     * 
+     * @param o null OK
+     * @return -1 if not found
+     */
+    private int indexOf(Object o)
+    {
+        for (int i = 0; i < inline_size; i++)
+        {
+            Object x = inline[i];
+            if (x == o || (o != null && o.equals(x))) return i;
+        }
+        return -1;
+    }
+    
+    @Override
+    public int size()
+    {
+        return table == null ? inline_size : table.size();
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        return table == null ? indexOf(o) >= 0 : table.contains(o);
+    }
+    
+    @Override
+    public boolean add(Object o)
+    {
+        if (table != null) return table.add(o);
+        if (indexOf(o) >= 0) return false;
+        
+        if (inline == null)
+            inline = new Object[1];
+        else if (inline_size == inline.length)
+        {
+            if (inline_size == INLINE_CAPACITY)
+            {
+                promote();
+                return table.add(o);
+            }
+            Object[] grown = new Object[2 * inline.length];
+            System.arraycopy(inline, 0, grown, 0, inline_size);
+            inline = grown;
+        }
+        inline[inline_size++] = o;
+        mod_count++;
+        return true;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        if (table != null)
+        {
+            boolean removed = table.remove(o);
+            if (removed && table.size() <= INLINE_CAPACITY/2)
+                demote();
+            return removed;
+        }
+        int i = indexOf(o);
+        if (i < 0) return false;
+        removeAt(i);
+        return true;
+    }
+    
+    private void removeAt(int i)
+    {
+        inline[i] = inline[--inline_size];
+        inline[inline_size] = null;
+        if (inline_size == 0) inline = null;
+        mod_count++;
+    }
+    
+    @Override
+    public void clear()
+    {
+        inline = null;
+        inline_size = 0;
+        table = null;
+        mod_count++;
+    }
+    
+    /**
+     * Moves the inline elements into a hash table. 
+     */
+    private void promote()
+    {
+        CuckooHashingSet promoted = CuckooHashingSet.withExpectedSize(4 * INLINE_CAPACITY);
+        for (int i = 0; i < inline_size; i++)
+            promoted.add(inline[i]);
+        table = promoted;
+        inline = null;
+        inline_size = 0;
+        mod_count++;
+    }
+    
+    /**
+     * Moves the elements of the hash table into an inline array. 
+     */
+    private void demote()
+    {
+        Object[] small = new Object[INLINE_CAPACITY];
+        int n = 0;
+        for (Object x: table)
+            small[n++] = x;
+        table = null;
+        inline = small;
+        inline_size = n;
+        mod_count++;
+    }
+    
+    @Override
+    public Footprint footprint()
+    {
+        if (table != null) return table.footprint();
+        long array_bytes = (inline == null ? 0L : Footprint.referenceArrayBytes(inline.length));
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), inline_size, Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(array_bytes, key_bytes, inline_size, inline == null ? 0 : inline.length);
+    }
+    
+    @Override
+    public Iterator<Object> iterator()
+    {
+        if (table != null) return table.iterator();
+        return new Iterator<Object>()
+        {
+            private int cell_idx = 0;
+            private boolean can_remove = false;
+            private int expected_mod_count = mod_count;
+            
+            private void checkForComodification()
+            {
+                if (mod_count != expected_mod_count) throw new ConcurrentModificationException();
+            }
+            
+            @Override
+            public boolean hasNext()
+            {
+                checkForComodification();
+                return cell_idx < inline_size;
+            }
+            
+            @Override
+            public Object next()
+            {
+                checkForComodification();
+                if (cell_idx >= inline_size) throw new NoSuchElementException();
+                can_remove = true;
+                return inline[cell_idx++];
+            }
+            
+            @Override
+            public void remove()
+            {
+                if (!can_remove) throw new IllegalStateException();
+                checkForComodification();
+                can_remove = false;
+                // last element moves into the removed cell, visited next
+                removeAt(--cell_idx);
+                expected_mod_count = mod_count;
+            }
+        };
+    }
+}
@@ -0,0 +1,547 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded key-value cache indexed by cuckoo hashing over two tables.  
+ * The number of entries never exceeds the capacity fixed at construction; 
+ * the tables are never grown or rehashed. When the cache is full, 
+ * an entry is evicted by the CLOCK (second chance) policy: 
+ * a hand sweeps the cells, clearing the reference bits set by 
+ * {@link #get(java.lang.Object) } and {@link #put(java.lang.Object, java.lang.Object) }, 
+ * and evicts the first entry found without the bit. 
+ * If the cuckoo insertion loop runs too long, the entry left without a cell is 
+ * evicted instead of rehashing. 
+ * 
+ * Entries may have a time to live. Deadlines are kept in a hierarchical 
+ * timing wheel of {@value #WHEEL_LEVELS} levels with {@value #WHEEL_SLOTS} slots each, 
+ * with millisecond ticks; every operation first advances the wheel 
+ * to the current time and removes the expired entries. 
+ * 
+ * Null keys and values are not permitted. Instances are not thread-safe. 
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class CuckooCache<K,V>
+{
+    /**
+     * Maximum load factor of the cuckoo tables at full capacity.
+     */
+    private static final double MAX_LOAD_FACTOR = 0.45;
+    /**
+     * Maximum number of evictions for placing one entry.
+     */
+    private static final int MAX_LOOPS = 64;
+    /**
+     * Bits of slot index in a wheel level.
+     */
+    private static final int WHEEL_BITS = 6;
+    /**
+     * Number of slots at each wheel level.
+     */
+    private static final int WHEEL_SLOTS = 1<<WHEEL_BITS;
+    /**
+     * Number of wheel levels; together, they span {@link #WHEEL_SLOTS}<sup>{@link #WHEEL_LEVELS}</sup> ticks 
+     * (about 4.6 hours). Longer lifetimes are cascaded from the top level repeatedly.
+     */
+    private static final int WHEEL_LEVELS = 4;
+    /**
+     * Deadline for entries that do not expire. 
+     */
+    private static final long NEVER = Long.MAX_VALUE;
+    
+    /**
+     * Instantiation with the system clock.
+     * 
+     * @param capacity maximum number of entries
+     */
+    public CuckooCache(int capacity)
+    {
+        this(capacity, () -> System.nanoTime() / 1_000_000L);
+    }
+    
+    /**
+     * Instantiation with a given clock.
+     * 
+     * @param capacity maximum number of entries; positive
+     * @param millis_clock monotone time source in milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public CuckooCache(int capacity, LongSupplier millis_clock)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: "+capacity);
+        this.capacity = capacity;
+        int cap_bits = 4;
+        while ((2L << cap_bits) * MAX_LOAD_FACTOR < capacity) cap_bits++;
+        this.table1 = (Entry<K,V>[]) new Entry<?,?>[1 << cap_bits];
+        this.table2 = (Entry<K,V>[]) new Entry<?,?>[1 << cap_bits];
+        this.hshift = 32 - cap_bits;
+        Random RND = new Random();
+        this.seed1 = RND.nextInt();
+        this.seed2 = RND.nextInt();
+        this.clock = millis_clock;
+        this.current_tick = millis_clock.getAsLong();
+        this.wheel = (Entry<K,V>[]) new Entry<?,?>[WHEEL_LEVELS * WHEEL_SLOTS];
+    }
+    
+    private final int capacity;
+    private final Entry<K,V>[] table1;
+    private final Entry<K,V>[] table2;
+    private final int hshift;
+    private final int seed1;
+    private final int seed2;
+    private final LongSupplier clock;
+    /**
+     * Heads of the doubly-linked slot lists; slot <var>s</var> of level <var>k</var> is at <var>k</var>*{@link #WHEEL_SLOTS}+<var>s</var>.
+     */
+    private final Entry<K,V>[] wheel;
+    /**
+     * Time up to which the wheel has been processed.
+     */
+    private long current_tick;
+    /**
+     * Position of the CLOCK hand; cells of the second table follow those of the first. 
+     */
+    private int clock_hand = 0;
+    
+    private int size = 0;
+    private int num_scheduled = 0;
+    private long num_evictions = 0L;
+    private long num_expirations = 0L;
+    
+    /**
+     * Cache entry. 
+     */
+    private static final class Entry<K,V>
+    {
+        private Entry(K key, int hash, V value)
+        {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+        private final K key;
+        private final int hash;
+        private V value;
+        /**
+         * CLOCK reference bit.
+         */
+        private boolean referenced = false;
+        private long deadline = NEVER;
+        /**
+         * Index of the wheel slot; -1 if not scheduled.
+         */
+        private int wheel_slot = -1;
+        private Entry<K,V> prev;
+        private Entry<K,V> next;
+    }
+    
+    /**
+     * Hash value scrambling (MurmurHash3 finalizer).
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    private int index1(int h)
+    {
+        return mix(h ^ seed1) >>> hshift;
+    }
+    
+    private int index2(int h)
+    {
+        return mix(h ^ seed2) >>> hshift;
+    }
+    
+    /**
+     * Maximum number of entries.
+     * 
+     * @return capacity fixed at construction
+     */
+    public int capacity()
+    {
+        return capacity;
+    }
+    
+    /**
+     * Number of entries (expired ones are removed first). 
+     * 
+     * @return number of live entries
+     */
+    public int size()
+    {
+        expire();
+        return size;
+    }
+    
+    /**
+     * Number of entries evicted so far because the cache was full, or 
+     * because the cuckoo insertion loop failed.
+     * 
+     * @return eviction count
+     */
+    public long getEvictionCount()
+    {
+        return num_evictions;
+    }
+    
+    /**
+     * Number of entries removed so far because their time to live ran out.
+     * 
+     * @return expiration count
+     */
+    public long getExpirationCount()
+    {
+        return num_expirations;
+    }
+    
+    /**
+     * Value associated with a key. The entry gets its reference bit set.
+     * 
+     * @param key not null
+     * @return null if no live entry
+     */
+    public V get(Object key)
+    {
+        expire();
+        Entry<K,V> e = find(key);
+        if (e == null) return null;
+        e.referenced = true;
+        return e.value;
+    }
+    
+    /**
+     * Whether the key has a live entry; the reference bit is not set. 
+     * 
+     * @param key not null
+     * @return whether the cache has the key
+     */
+    public boolean containsKey(Object key)
+    {
+        expire();
+        return find(key) != null;
+    }
+    
+    /**
+     * Associates a value with the key, without expiration. 
+     * 
+     * @param key not null
+     * @param value not null
+     * @return previous value, or null if none
+     */
+    public V put(K key, V value)
+    {
+        return put(key, value, NEVER);
+    }
+    
+    /**
+     * Associates a value with the key, expiring after the given time. 
+     * If the key is already present, its value and deadline are replaced. 
+     * Otherwise, if the cache is full, an entry is evicted first. 
+     * 
+     * @param key not null
+     * @param value not null
+     * @param ttl_millis time to live in milliseconds; positive ({@link Long#MAX_VALUE} for no expiration)
+     * @return previous value, or null if none
+     */
+    public V put(K key, V value, long ttl_millis)
+    {
+        if (value == null) throw new NullPointerException("Null values are not permitted");
+        if (ttl_millis < 1)
+            throw new IllegalArgumentException("Time to live must be positive: "+ttl_millis);
+        expire();
+        // no overflow for negative clock readings either
+        long deadline = (ttl_millis == NEVER || current_tick > NEVER - ttl_millis ? NEVER : current_tick + ttl_millis);
+        
+        Entry<K,V> e = find(key);
+        if (e != null)
+        {
+            V old_value = e.value;
+            e.value = value;
+            e.referenced = true;
+            unschedule(e);
+            e.deadline = deadline;
+            schedule(e);
+            return old_value;
+        }
+        
+        if (size == capacity) evict();
+        e = new Entry<>(key, key.hashCode(), value);
+        e.referenced = true; // second chance for new entries too
+        e.deadline = deadline;
+        schedule(e);
+        size++;
+        Entry<K,V> homeless = place(e);
+        if (homeless != null)
+        {
+            unschedule(homeless);
+            size--;
+            num_evictions++;
+        }
+        return null;
+    }
+    
+    /**
+     * Removes the entry for a key. 
+     * 
+     * @param key not null
+     * @return value of the removed entry, or null if none
+     */
+    public V remove(Object key)
+    {
+        expire();
+        Entry<K,V> e = find(key);
+        if (e == null) return null;
+        delete(e);
+        return e.value;
+    }
+    
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        Arrays.fill(table1, null);
+        Arrays.fill(table2, null);
+        Arrays.fill(wheel, null);
+        size = 0;
+        num_scheduled = 0;
+        clock_hand = 0;
+    }
+    
+    /**
+     * Advances the timing wheel to the current time, removing the expired entries. 
+     * Called by every operation; calling it directly releases expired entries 
+     * in an otherwise idle cache. 
+     */
+    public void expire()
+    {
+        long now = clock.getAsLong();
+        if (num_scheduled == 0)
+        {
+            current_tick = Math.max(current_tick, now);
+            return;
+        }
+        while (num_scheduled != 0)
+        {
+            long t = nextBusyTick();
+            if (t > now) break;
+            current_tick = t;
+            // cascade from the highest level whose period just ended  
+            int level = 0;
+            while (level+1 < WHEEL_LEVELS && (t & ((1L << (WHEEL_BITS*(level+1)))-1L)) == 0L) level++;
+            for (; level > 0; level--)
+                cascade(level * WHEEL_SLOTS + (int) ((t >>> (WHEEL_BITS*level)) & (WHEEL_SLOTS-1)));
+            int slot = (int) (t & (WHEEL_SLOTS-1));
+            while (wheel[slot] != null)
+            {
+                Entry<K,V> e = wheel[slot];
+                delete(e);
+                num_expirations++;
+            }
+        }
+        current_tick = Math.max(current_tick, now);
+    }
+    
+    /**
+     * Earliest tick after the current one at which the wheel has something to do: 
+     * a level-0 slot to empty, or a non-empty slot to cascade at a higher level. 
+     * Ticks in between are skipped without work, so that an idle cache catches up in 
+     * at most {@value #WHEEL_LEVELS}&times;{@value #WHEEL_SLOTS} slot checks per non-empty slot.  
+     * 
+     * @return the next busy tick; {@link Long#MAX_VALUE} if the wheel is empty
+     */
+    private long nextBusyTick()
+    {
+        long next = Long.MAX_VALUE;
+        for (int level = 0; level < WHEEL_LEVELS; level++)
+        {
+            int shift = WHEEL_BITS * level;
+            // slots of this level are visited at multiples of 2^shift
+            long period = current_tick >> shift;
+            for (int j = 1; j <= WHEEL_SLOTS; j++)
+            {
+                long p = period + j;
+                if (wheel[level * WHEEL_SLOTS + (int) (p & (WHEEL_SLOTS-1))] != null)
+                {
+                    next = Math.min(next, p << shift);
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+    
+    /**
+     * Reschedules the entries of a wheel slot at the next lower level.
+     */
+    private void cascade(int wheel_slot)
+    {
+        Entry<K,V> e = wheel[wheel_slot];
+        wheel[wheel_slot] = null;
+        while (e != null)
+        {
+            Entry<K,V> next = e.next;
+            e.wheel_slot = -1;
+            num_scheduled--;
+            if (e.deadline <= current_tick)
+            {
+                delete(e);
+                num_expirations++;
+            } else
+                schedule(e);
+            e = next;
+        }
+    }
+    
+    /**
+     * Puts an entry into the wheel slot for its deadline.
+     */
+    private void schedule(Entry<K,V> e)
+    {
+        if (e.deadline == NEVER) return;
+        long delta = e.deadline - current_tick;
+        long when = e.deadline;
+        int level = 0;
+        while (level < WHEEL_LEVELS && (delta >>> (WHEEL_BITS * (level+1))) != 0L) level++;
+        if (level == WHEEL_LEVELS)
+        {
+            // beyond the wheel's span: park at the top level, to be cascaded again 
+            level = WHEEL_LEVELS-1;
+            when = current_tick + (1L << (WHEEL_BITS * WHEEL_LEVELS)) - 1L;
+        }
+        int wheel_slot = level * WHEEL_SLOTS + (int) ((when >>> (WHEEL_BITS*level)) & (WHEEL_SLOTS-1));
+        e.wheel_slot = wheel_slot;
+        e.prev = null;
+        e.next = wheel[wheel_slot];
+        if (e.next != null) e.next.prev = e;
+        wheel[wheel_slot] = e;
+        num_scheduled++;
+    }
+    
+    /**
+     * Unlinks an entry from its wheel slot.
+     */
+    private void unschedule(Entry<K,V> e)
+    {
+        if (e.wheel_slot < 0) return;
+        if (e.prev == null)
+            wheel[e.wheel_slot] = e.next;
+        else
+            e.prev.next = e.next;
+        if (e.next != null) e.next.prev = e.prev;
+        e.prev = e.next = null;
+        e.wheel_slot = -1;
+        num_scheduled--;
+    }
+    
+    /**
+     * Entry lookup. 
+     * 
+     * @param key not null
+     * @return null if not found
+     */
+    private Entry<K,V> find(Object key)
+    {
+        int h = key.hashCode();
+        Entry<K,V> e = table1[index1(h)];
+        if (e != null && e.hash == h && key.equals(e.key)) return e;
+        e = table2[index2(h)];
+        if (e != null && e.hash == h && key.equals(e.key)) return e;
+        return null;
+    }
+    
+    /**
+     * Removes an entry from its table and the wheel. 
+     */
+    private void delete(Entry<K,V> e)
+    {
+        int i = index1(e.hash);
+        if (table1[i] == e)
+            table1[i] = null;
+        else
+            table2[index2(e.hash)] = null;
+        unschedule(e);
+        size--;
+    }
+    
+    /**
+     * Cuckoo insertion loop.
+     * 
+     * @param e entry not in the tables
+     * @return null if all is placed, or the entry left without a cell 
+     */
+    private Entry<K,V> place(Entry<K,V> e)
+    {
+        for (int num_tries = 0; num_tries < MAX_LOOPS; num_tries++)
+        {
+            int i = index1(e.hash);
+            Entry<K,V> evicted = table1[i];
+            table1[i] = e;
+            if (evicted == null) return null;
+            int j = index2(evicted.hash);
+            e = table2[j];
+            table2[j] = evicted;
+            if (e == null) return null;
+        }
+        return e;
+    }
+    
+    /**
+     * CLOCK eviction: advances the hand, giving a second chance to referenced entries, 
+     * and removes the first entry without the reference bit. 
+     */
+    private void evict()
+    {
+        int num_cells = table1.length + table2.length;
+        while (true)
+        {
+            int cell = clock_hand;
+            clock_hand = (clock_hand + 1 == num_cells ? 0 : clock_hand + 1);
+            Entry<K,V> e = (cell < table1.length ? table1[cell] : table2[cell - table1.length]);
+            if (e == null) continue;
+            if (e.referenced)
+                e.referenced = false;
+            else
+            {
+                delete(e);
+                num_evictions++;
+                return;
+            }
+        }
+    }
+}
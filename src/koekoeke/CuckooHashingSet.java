@@ -23,9 +23,27 @@
  */
 package koekoeke;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -33,143 +51,750 @@ import java.util.Set;
  * Cuckoo hashing as introduced by Rasmus Pagh and Flemming Friche Rodler [European Symposium on Algorithms 2001].  
  * Delete and search are worst-case O(1) [involving 1 or 2 table lookups]; insertion is O(1) amortized.  
  * 
+ * The number of tables (hash functions) <var>d</var> is configurable between 2 and {@value #MAX_TABLES} 
+ * (<var>d</var>-ary cuckoo hashing of Fotakis, Pagh, Sanders and Spirakis [STACS 2003]): 
+ * with more tables, the maximum load grows from just under 1/2 to over 90%, 
+ * at the cost of up to <var>d</var> lookups for an unsuccessful search. 
+ * 
  * @author Mikl&oacute;s Cs&#369;r&ouml;s
  */
-public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
+public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint, RawCells, BatchUpdates
 {
     /**
-     * Maximum load factor, should be less than 0.5.
+     * Maximum load factor with 2 tables, should be less than 0.5.
      */
     private static final double MAX_LOAD_FACTOR = 0.49;
+    /**
+     * Maximum load factors by number of tables; the thresholds of random 
+     * <var>d</var>-ary cuckoo hashing are about 0.5, 0.92 and 0.98 for <var>d</var>=2,3,4.
+     */
+    private static final double[] MAX_LOAD_FACTORS = {0.0, 0.0, MAX_LOAD_FACTOR, 0.85, 0.93};
     private static final double MIN_LOAD_FACTOR = 0.10;
+    /**
+     * Maximum number of tables.
+     */
+    public static final int MAX_TABLES = 4;
+    private final int num_tables;
+    private final double max_load_factor;
     private int capacity_bits;
-    private SingleOccupancyTable table1;
-    private SingleOccupancyTable table2;
+    private SingleOccupancyTable[] tables;
     private long num_insertions_since_last_rehash = 0L;
     private int max_loops;
-    private static final int MAX_LOOP_FACTOR = 6;
+    private static final int MAX_LOOP_FACTOR = 12;
     private static final int DEFAULT_CAPACITY_BITS = 10;
+    /**
+     * State of the pseudorandom generator for picking the evicted cell among more than two tables.
+     */
+    private int eviction_choice = 0x9e3779b9;
+    /**
+     * Statistics collector; null when disabled.
+     */
+    private HashingStatistics statistics = null;
     public CuckooHashingSet()
     {
-        this(capacity(DEFAULT_CAPACITY_BITS));
+        this(capacity(2, DEFAULT_CAPACITY_BITS));
     }
 
     public CuckooHashingSet(int requested_capacity)
     {
+        this(requested_capacity, 2);
+    }
+    
+    /**
+     * Instantiation with a given number of tables.
+     * 
+     * @param requested_capacity minimum total capacity
+     * @param num_tables number of tables (hash functions), between 2 and {@link #MAX_TABLES}
+     */
+    public CuckooHashingSet(int requested_capacity, int num_tables)
+    {
+        this(requested_capacity, num_tables, true);
+    }
+    
+    /**
+     * Instantiation with or without the tables. 
+     * 
+     * @param requested_capacity minimum total capacity
+     * @param num_tables number of tables
+     * @param allocate_tables whether the tables are allocated here; if not, the caller sets them 
+     */
+    private CuckooHashingSet(int requested_capacity, int num_tables, boolean allocate_tables)
+    {
+        if (num_tables < 2 || num_tables > MAX_TABLES)
+            throw new IllegalArgumentException("Number of tables must be between 2 and "+MAX_TABLES+": "+num_tables);
+        this.num_tables = num_tables;
+        this.max_load_factor = MAX_LOAD_FACTORS[num_tables];
         // find smallest power of 2 to accomodate the requested capacity
         this.capacity_bits = 4;
-        int capacity = capacity(capacity_bits);
-        while (capacity < requested_capacity)
-        {
+        while (capacity(num_tables, capacity_bits) < requested_capacity)
             capacity_bits++;
-            capacity += capacity;
-        }
-        this.table1 = new SingleOccupancyTable(capacity_bits);
-        this.table2 = new SingleOccupancyTable(capacity_bits);
+        this.tables = new SingleOccupancyTable[num_tables];
+        if (allocate_tables)
+            allocateTables();
         this.max_loops = (capacity_bits * MAX_LOOP_FACTOR);
     }
+    
+    /**
+     * Sets fresh empty tables at the current capacity.
+     */
+    private void allocateTables()
+    {
+        for (int t = 0; t < num_tables; t++)
+            tables[t] = new SingleOccupancyTable(capacity_bits);
+    }
+
 
+    /**
+     * Starts collecting statistics about rehashes, lookups and evictions.
+     * 
+     * @return the statistics collector (same as before if already enabled)
+     */
+    public HashingStatistics enableStatistics()
+    {
+        if (statistics == null)
+            statistics = new HashingStatistics();
+        return statistics;
+    }
+    
+    /**
+     * Stops collecting statistics.
+     */
+    public void disableStatistics()
+    {
+        statistics = null;
+    }
+    
+    /**
+     * Current statistics collector.
+     * 
+     * @return null if statistics are disabled
+     */
+    public HashingStatistics getStatistics()
+    {
+        return statistics;
+    }
+    
+    /**
+     * Instantiation with enough capacity for a given number of elements without rehashing.  
+     * 
+     * @param expected_size number of elements to be inserted
+     * @return new empty set
+     */
+    public static CuckooHashingSet withExpectedSize(int expected_size)
+    {
+        return withExpectedSize(expected_size, 2);
+    }
+    
+    /**
+     * Instantiation with a given number of tables, and enough capacity for a given number of elements without rehashing.  
+     * 
+     * @param expected_size number of elements to be inserted
+     * @param num_tables number of tables (hash functions), between 2 and {@link #MAX_TABLES}
+     * @return new empty set
+     */
+    public static CuckooHashingSet withExpectedSize(int expected_size, int num_tables)
+    {
+        if (num_tables < 2 || num_tables > MAX_TABLES)
+            throw new IllegalArgumentException("Number of tables must be between 2 and "+MAX_TABLES+": "+num_tables);
+        return new CuckooHashingSet((int) (expected_size / MAX_LOAD_FACTORS[num_tables]) + 1, num_tables);
+    }
+    
+    /**
+     * Number of tables (hash functions).
+     * 
+     * @return between 2 and {@link #MAX_TABLES}
+     */
+    public int numTables()
+    {
+        return num_tables;
+    }
     
     @Override
     public boolean add(Object x)
     {
         if (contains(x)) return false;
-
+        insert(x);
+        return true;
+    }
+    
+    /**
+     * Insertion of an element that is not in the set. 
+     * 
+     * @param x new element
+     */
+    private void insert(Object x)
+    {
         this.num_insertions_since_last_rehash ++;
 
-        for (int num_tries = 0; num_tries < this.max_loops; num_tries++)
+        Object homeless = place(x);
+        // failed insertions too: they have the longest chains
+        if (statistics != null)
+            statistics.recordEvictionChain(num_last_evictions);
+        if (num_last_evictions >= HashingEvents.DISPLACEMENT_THRESHOLD)
+            HashingEvents.longInsertion(getClass(), num_last_evictions, capacity(), size(), homeless != EMPTY);
+        if (homeless != EMPTY)
         {
-            x = this.table1.put(x);
-            if (x == EMPTY) break;
-            x = this.table2.put(x);
-            if (x == EMPTY)
-              break;
+            rehash(0, HashingStatistics.RehashCause.FAILED_INSERT, homeless);
+            return;
         }
-        if (x != EMPTY)
+
+        if (loadFactor()>= max_load_factor)
+        {
+            rehash(capacity(), HashingStatistics.RehashCause.GROWTH);
+        } else if (this.num_insertions_since_last_rehash > (long) size() * size())
         {
-          rehash(0);
-          return add(x);
+            rehash(capacity(), HashingStatistics.RehashCause.INSERTION_LIMIT);
         }
-
-        if ( //table1.loadFactor()>=MAX_LOAD_FACTOR || table2.loadFactor()>=MAX_LOAD_FACTOR //
-                loadFactor()>= MAX_LOAD_FACTOR 
-                || (this.num_insertions_since_last_rehash > (table1.n + table2.n) * (table1.n + table2.n))) 
+    }
+    
+    /**
+     * Number of evictions in the last call to {@link #place(java.lang.Object) }.
+     */
+    private int num_last_evictions;
+    
+    /**
+     * The cuckoo insertion loop: puts an element into the first of its cells that is free; 
+     * if all are occupied, evicts the element of one of the cells, and repeats with 
+     * the evicted element, at most {@link #max_loops} times. 
+     * The evicted cell is in a table different from where the element came from: 
+     * the other one with 2 tables, and a random one with more (random-walk insertion). 
+     * 
+     * @param x element not in the tables
+     * @return {@link #EMPTY} if all is placed, or the element left without a cell
+     */
+    private Object place(Object x)
+    {
+        int from = -1;
+        int num_tries = 0;
+        for (; num_tries < this.max_loops; num_tries++)
+        {
+            int t = 0;
+            while (t < num_tables && tables[t].whoSleepsInMyBed(x) != EMPTY) t++;
+            if (t < num_tables)
+            {
+                tables[t].put(x);
+                x = EMPTY;
+                break;
+            }
+            if (num_tables == 2)
+                t = (from == 0 ? 1 : 0);
+            else 
+            {
+                eviction_choice ^= eviction_choice << 13;
+                eviction_choice ^= eviction_choice >>> 17;
+                eviction_choice ^= eviction_choice << 5;
+                t = (int) (((eviction_choice & 0xffffffffL) * (from < 0 ? num_tables : num_tables - 1)) >>> 32);
+                if (from >= 0 && t >= from) t++;
+            }
+            x = tables[t].put(x);
+            from = t;
+        }
+        this.num_last_evictions = num_tries;
+        return x;
+    }
+    
+    /**
+     * Insertion of elements that are known to be distinct and not in the set (no search).
+     * 
+     * @param new_elements distinct elements
+     */
+    void addAllNew(Collection<?> new_elements)
+    {
+        for (Object x: new_elements)
+            insert(x);
+    }
+    
+    /**
+     * Grows the tables (if necessary) for accommodating more elements without rehashing.  
+     * 
+     * @param num_new_elements upper bound on the number of insertions  
+     */
+    private void ensureCapacity(int num_new_elements)
+    {
+        int needed_capacity = (int) ((size() + (long) num_new_elements) / max_load_factor) + 1;
+        if (needed_capacity > capacity())
+            rehash(needed_capacity - capacity(), HashingStatistics.RehashCause.GROWTH);
+    }
+    
+    /**
+     * Number of elements sampled by {@link #estimateNewElements(java.util.Collection) }.
+     */
+    private static final int NEW_ELEMENT_SAMPLES = 256;
+    
+    /**
+     * Estimates how many elements of a collection are not in this set, 
+     * from the first few elements of the collection. 
+     * 
+     * @param elements a collection 
+     * @return estimated number of new elements
+     */
+    private int estimateNewElements(Collection<?> elements)
+    {
+        int num_samples = 0;
+        int num_new = 0;
+        Iterator<?> iter = elements.iterator();
+        while (num_samples < NEW_ELEMENT_SAMPLES && iter.hasNext())
+        {
+            if (!contains(iter.next())) num_new++;
+            num_samples++;
+        }
+        if (num_samples == 0) return 0;
+        return (int) ((long) elements.size() * num_new / num_samples);
+    }
+    
+    /**
+     * Union in place. The tables are grown once for the estimated number of new elements 
+     * (and later as needed, if the estimate is short), 
+     * and the argument's cells are scanned directly if it implements {@link RawCells}. 
+     * 
+     * @param elements added elements
+     * @return whether the set changed
+     */
+    @Override
+    public boolean addAll(Collection<?> elements)
+    {
+        ensureCapacity(estimateNewElements(elements));
+        final int old_size = size();
+        SetAlgebra.forEachElement(elements, new SetAlgebra.ElementVisitor()
+        {
+            @Override
+            public void visit(Object x)
+            {
+                add(x);
+            }
+        });
+        return size() != old_size;
+    }
+    
+    /**
+     * Intersection in place: scans the cells, and replaces the tables 
+     * by new ones holding the retained elements, if the argument is a {@link Set}. 
+     * 
+     * @param elements retained elements
+     * @return whether the set changed
+     */
+    @Override
+    public boolean retainAll(Collection<?> elements)
+    {
+        if (!(elements instanceof Set))
+            return super.retainAll(elements);
+        List<Object> kept = SetAlgebra.filter(this, (Set<?>) elements, true, false);
+        if (kept.size() == size()) return false;
+        CuckooHashingSet smaller = withExpectedSize(kept.size(), num_tables);
+        smaller.addAllNew(kept);
+        adopt(smaller);
+        return true;
+    }
+    
+    /**
+     * Difference in place. If the argument is a smaller {@link Set}, its elements are removed one by one;
+     * if it is a larger set, the cells are scanned and the tables replaced by new ones with the remaining elements.
+     * 
+     * @param elements removed elements
+     * @return whether the set changed
+     */
+    @Override
+    public boolean removeAll(Collection<?> elements)
+    {
+        if (!(elements instanceof Set))
+            return super.removeAll(elements);
+        final int old_size = size();
+        if (elements.size() < old_size)
+        {
+            SetAlgebra.forEachElement(elements, new SetAlgebra.ElementVisitor()
+            {
+                @Override
+                public void visit(Object x)
+                {
+                    remove(x);
+                }
+            });
+        } else
+        {
+            List<Object> kept = SetAlgebra.filter(this, (Set<?>) elements, false, false);
+            if (kept.size() == old_size) return false;
+            CuckooHashingSet smaller = withExpectedSize(kept.size(), num_tables);
+            smaller.addAllNew(kept);
+            adopt(smaller);
+        }
+        return size() != old_size;
+    }
+    
+    /**
+     * Set equality by scanning the cells of this set. 
+     * 
+     * @param o compared object
+     * @return true if o is a set with the same elements
+     */
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == this) return true;
+        if (!(o instanceof Set)) return false;
+        Set<?> other = (Set<?>) o;
+        if (other.size() != size()) return false;
+        try
+        {
+            for (Object[] cells: cellArrays())
+                for (Object x: cells)
+                    if (x != EMPTY && !other.contains(x)) return false;
+        } catch (ClassCastException | NullPointerException unused)
         {
-            rehash(capacity());
+            // as in AbstractSet: the other set does not take our elements
+            return false;
         }
         return true;
     }
+    
+    /**
+     * Sum of element hash codes, as per {@link Set#hashCode() }, by scanning the cells. 
+     * 
+     * @return set hash code
+     */
+    @Override
+    public int hashCode()
+    {
+        int h = 0;
+        for (Object[] cells: cellArrays())
+            for (Object x: cells)
+                if (x != EMPTY && x != null) h += x.hashCode();
+        return h;
+    }
+    
+    @Override
+    public Object[][] cellArrays()
+    {
+        Object[][] cells = new Object[num_tables][];
+        for (int t = 0; t < num_tables; t++)
+            cells[t] = tables[t].elements;
+        return cells;
+    }
+    
+    @Override
+    public Object emptyCell()
+    {
+        return EMPTY;
+    }
 
     @Override
     public boolean contains(Object emt)
     {
-        return (table1.contains(emt)) || (table2.contains(emt));
+        int t = 0;
+        while (t < num_tables && !tables[t].contains(emt)) t++;
+        if (statistics != null)
+            statistics.recordProbeLength(t < num_tables ? t+1 : num_tables);
+        return t < num_tables;
+    }
+    
+    /**
+     * Keys are processed in blocks of this size by the batch operations. 
+     */
+    private static final int BATCH_BLOCK_SIZE = 64;
+    
+    /**
+     * Batch search. The keys are processed in blocks: first all cell indices 
+     * are computed for a block, then the cells are read from all tables, 
+     * and finally the cell contents are compared with the keys. 
+     * The memory accesses within a block do not depend on each other, so 
+     * the processor can have many cache misses outstanding at once, 
+     * instead of the dependent misses per key of {@link #contains(java.lang.Object) }. 
+     * 
+     * @param keys search keys; null OK
+     * @param found filled with the results: found[i] tells whether keys[i] is in the set; same length as keys (or longer)
+     * @return number of keys found
+     */
+    public int containsAll(Object[] keys, boolean[] found)
+    {
+        if (found.length < keys.length)
+            throw new IllegalArgumentException("Result array is shorter than the key array");
+        
+        int[][] idx = new int[num_tables][BATCH_BLOCK_SIZE];
+        Object[][] cell = new Object[num_tables][BATCH_BLOCK_SIZE];
+        
+        int num_found = 0;
+        for (int block_start = 0; block_start < keys.length; block_start += BATCH_BLOCK_SIZE)
+        {
+            int block_size = Math.min(BATCH_BLOCK_SIZE, keys.length - block_start);
+            for (int j = 0; j < block_size; j++)
+            {
+                Object x = keys[block_start + j];
+                int h = (x == null ? 0 : x.hashCode());
+                for (int t = 0; t < num_tables; t++)
+                    idx[t][j] = (x == null ? 0 : tables[t].getIndex(h));
+            }
+            for (int t = 0; t < num_tables; t++)
+            {
+                Object[] elements = tables[t].elements;
+                for (int j = 0; j < block_size; j++)
+                    cell[t][j] = elements[idx[t][j]];
+            }
+            for (int j = 0; j < block_size; j++)
+            {
+                Object x = keys[block_start + j];
+                int t = 0;
+                while (t < num_tables && !SingleOccupancyTable.sameElement(cell[t][j], x)) t++;
+                boolean b = t < num_tables;
+                if (statistics != null)
+                    statistics.recordProbeLength(b ? t+1 : num_tables);
+                found[block_start + j] = b;
+                if (b) num_found++;
+            }
+        }
+        return num_found;
+    }
+    
+    /**
+     * Batch insertion. The keys are first searched by {@link #containsAll(java.lang.Object[], boolean[]) },
+     * and only the missing ones are inserted one by one, without searching the tables again. 
+     * A missing key that occurs more than once in the batch is inserted only the first time. 
+     * 
+     * @param keys new elements; null OK
+     * @param added filled with the results: added[i] tells whether keys[i] was new (false if already in the set or earlier in the batch); same length as keys (or longer)
+     * @return number of new elements
+     */
+    public int addBatch(Object[] keys, boolean[] added)
+    {
+        containsAll(keys, added);
+        Set<Object> inserted = null; // keys inserted by this batch, to catch repeated keys 
+        int num_added = 0;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (added[i])
+                added[i] = false;
+            else
+            {
+                if (inserted == null) inserted = new HashSet<>();
+                added[i] = inserted.add(keys[i]);
+                if (added[i])
+                {
+                    insert(keys[i]);
+                    num_added++;
+                }
+            }
+        }
+        return num_added;
+    }
+
+    /**
+     * Batched operations touch regions of 2<sup>{@value #BATCH_REGION_BITS}</sup> cells in the first table.
+     */
+    private static final int BATCH_REGION_BITS = 12;
+    /**
+     * Maximum number of regions in batched operations is 2<sup>{@value #BATCH_MAX_PARTITION_BITS}</sup>.
+     */
+    private static final int BATCH_MAX_PARTITION_BITS = 12;
+    
+    /**
+     * Batch update. The tables are grown first for all insertions, then the operations 
+     * are applied in the order of their cells' regions in the first table. 
+     * 
+     * @param keys operands; null OK
+     * @param insertions kind of each operation
+     * @param results filled with the results
+     * @return number of operations that changed the set 
+     */
+    @Override
+    public int applyBatch(Object[] keys, boolean[] insertions, boolean[] results)
+    {
+        if (insertions.length < keys.length || results.length < keys.length)
+            throw new IllegalArgumentException("Operation or result array is shorter than the key array");
+        int num_insertions = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (insertions[i]) num_insertions++;
+        ensureCapacity(num_insertions);
+        
+        int partition_bits = Math.min(Math.max(capacity_bits - BATCH_REGION_BITS, 0), BATCH_MAX_PARTITION_BITS);
+        int[] regions = new int[keys.length];
+        if (partition_bits > 0)
+            for (int i = 0; i < keys.length; i++)
+            {
+                Object x = keys[i];
+                regions[i] = (x == null ? 0 : tables[0].getIndex(x.hashCode()) >>> (capacity_bits - partition_bits));
+            }
+        int num_changes = 0;
+        for (int i: BatchUpdates.partitionOrder(regions, 1 << partition_bits))
+        {
+            boolean b = insertions[i] ? add(keys[i]) : remove(keys[i]);
+            results[i] = b;
+            if (b) num_changes++;
+        }
+        return num_changes;
     }
 
     @Override
     public boolean remove(Object emt)
     {
         
-        boolean b = (table1.remove(emt)) || (table2.remove(emt));
+        boolean b = false;
+        for (int t = 0; t < num_tables && !b; t++)
+            b = tables[t].remove(emt);
         if (b && capacity_bits>DEFAULT_CAPACITY_BITS && loadFactor()<MIN_LOAD_FACTOR)
-                rehash(-capacity()/2);
+                rehash(-capacity()/2, HashingStatistics.RehashCause.SHRINK);
         return b;
     }
     
     @Override
     public void clear()
     {
-        CuckooHashingSet clean_slate = new CuckooHashingSet();
-        this.table1 = clean_slate.table1;
-        this.table2 = clean_slate.table2;
-
-        this.num_insertions_since_last_rehash = 0L;
+        adopt(new CuckooHashingSet(capacity(num_tables, DEFAULT_CAPACITY_BITS), num_tables));
     }
 
-    private void rehash(int capacity_delta)
+    /**
+     * Reallocates the tables with fresh hash functions.
+     * 
+     * @param capacity_delta change in total capacity; 0 for new hash functions only
+     * @param cause reason for rehashing, recorded in the statistics 
+     */
+    private void rehash(int capacity_delta, HashingStatistics.RehashCause cause)
+    {
+        rehash(capacity_delta, cause, EMPTY);
+    }
+    
+    /**
+     * Rehashing with fresh hash functions. 
+     * For the same capacity, the elements are rearranged in place. 
+     * When the capacity changes, new tables are allocated, and the elements are 
+     * moved from the old arrays by the cuckoo insertion loop, without searching; 
+     * at no point is more memory used than the old and new arrays. 
+     * 
+     * @param capacity_delta change in total capacity; 0 for new hash functions only
+     * @param cause reason for rehashing, recorded in the statistics and the {@link HashingEvents.Resize} event
+     * @param homeless an element that is not in the tables but must be placed; {@link #EMPTY} if none
+     */
+    private void rehash(int capacity_delta, HashingStatistics.RehashCause cause, Object homeless)
     {
-        int new_capacity = capacity() + capacity_delta;
+        long T0 = (statistics == null ? 0L : System.nanoTime());
+        HashingEvents.Resize event = new HashingEvents.Resize();
+        event.begin();
+        int old_capacity = capacity();
 //        System.out.println("#*CH.re "+capacity_bits+" -> "+newcapbits);
+        List<Object> pending = new ArrayList<>();
+        if (homeless != EMPTY) pending.add(homeless);
+        
+        if (capacity_delta != 0)
+        {
+            int new_capacity = capacity() + capacity_delta;
+            int new_capacity_bits = 4;
+            while (capacity(num_tables, new_capacity_bits) < new_capacity) new_capacity_bits++;
 
-        Object[] old1 = table1.elements;
-        Object[] old2 = table2.elements;
-
-        CuckooHashingSet shiny_new_table = new CuckooHashingSet(new_capacity);
-        int i=0;
-        for (int n1=0; n1<table1.size(); n1++)
+            Object[][] old_cells = cellArrays();
+            this.capacity_bits = new_capacity_bits;
+            this.max_loops = (capacity_bits * MAX_LOOP_FACTOR);
+            allocateTables();
+            for (Object[] old: old_cells)
+                for (Object x: old)
+                    if (x != EMPTY)
+                    {
+                        Object y = place(x);
+                        if (y != EMPTY) pending.add(y);
+                    }
+        }
+        if (capacity_delta == 0 || !pending.isEmpty())
+            reseedInPlace(pending);
+        this.num_insertions_since_last_rehash = 0L;
+        if (statistics != null)
+            statistics.recordRehash(cause, System.nanoTime()-T0);
+        event.end();
+        if (event.shouldCommit())
         {
-            while (old1[i]==EMPTY) i++;
-            shiny_new_table.add(old1[i++]);
+            event.setClass = getClass();
+            event.trigger = cause.name();
+            event.oldCapacity = old_capacity;
+            event.newCapacity = capacity();
+            event.size = size();
+            event.commit();
         }
-        i=0;
-        for (int n2=0; n2<table2.size(); n2++)
+//        System.out.println("#*CH.re DONE "+capacity_bits+" -> "+newcapbits);
+    }    
+    
+    /**
+     * Picks new hash functions for the current tables, and moves every element 
+     * that is not in its new cell with the cuckoo insertion loop. 
+     * Elements that cannot be placed trigger another round with new hash functions. 
+     * 
+     * @param pending elements to be placed in addition to those in the tables; emptied here 
+     */
+    private void reseedInPlace(List<Object> pending)
+    {
+        boolean all_placed;
+        do
+        {
+            for (SingleOccupancyTable table: tables)
+                table.reseed();
+            all_placed = true;
+            for (int t = 0; t < num_tables && all_placed; t++)
+                all_placed = settle(tables[t], pending);
+            while (all_placed && !pending.isEmpty())
+            {
+                Object y = place(pending.remove(pending.size()-1));
+                if (y != EMPTY)
+                {
+                    pending.add(y);
+                    all_placed = false;
+                }
+            }
+        } while (!all_placed);
+    }
+    
+    /**
+     * Moves the elements of a table that are not in their cell by the current 
+     * hash function.
+     * 
+     * @param table one of the tables
+     * @param pending receives the element left without a cell, if any
+     * @return false if an element was left without a cell (scan stopped)
+     */
+    private boolean settle(SingleOccupancyTable table, List<Object> pending)
+    {
+        Object[] elements = table.elements;
+        for (int i = 0; i < elements.length; i++)
         {
-            while (old2[i]==EMPTY) i++;
-            shiny_new_table.add(old2[i++]);
+            Object x = elements[i];
+            if (x == EMPTY || table.indexOf(x) == i) continue;
+            elements[i] = EMPTY;
+            table.n--;
+            Object y = place(x);
+            if (y != EMPTY)
+            {
+                pending.add(y);
+                return false;
+            }
         }
-        this.table1 = shiny_new_table.table1;
-        this.table2 = shiny_new_table.table2;
+        return true;
+    }
+    
+    /**
+     * Takes over the tables of another instance.
+     * 
+     * @param shiny_new_table not used afterwards 
+     */
+    private void adopt(CuckooHashingSet shiny_new_table)
+    {
+        assert (shiny_new_table.num_tables == this.num_tables);
+        this.tables = shiny_new_table.tables;
         this.num_insertions_since_last_rehash = 0L;
         this.capacity_bits = shiny_new_table.capacity_bits;
         this.max_loops = shiny_new_table.max_loops;
-//        System.out.println("#*CH.re DONE "+capacity_bits+" -> "+newcapbits);
-    }    
+    }
     
     @Override
     public int size()
     {
-        return table1.size() + table2.size();
+        int n = 0;
+        for (SingleOccupancyTable table: tables)
+            n += table.size();
+        return n;
     }
     
-    private static int capacity(int table_cap_bits)
+    private static int capacity(int num_tables, int table_cap_bits)
     {
-        return 2*(1<<table_cap_bits);
+        return num_tables*(1<<table_cap_bits);
     }
     
     private int capacity()
     { 
-        int c = capacity(capacity_bits);
-        assert (c==table1.elements.length + table2.elements.length);
+        int c = capacity(num_tables, capacity_bits);
+        assert (c==num_tables * tables[0].elements.length);
         return c;
     }
     
@@ -178,25 +803,223 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
         return size()/((double)capacity());
     }
     
+    /**
+     * Whether the insertion of one more element will grow the tables, by reaching the maximum load factor. 
+     * Lets a wrapper replace the set at the time when all elements are moved anyway. 
+     * 
+     * @return true if the next new element triggers a rehash to a larger capacity
+     */
+    public boolean growsOnNextInsertion()
+    {
+        return (size() + 1.0) / capacity() >= max_load_factor;
+    }
+    
+    /**
+     * Memory usage of the tables, with key sizes estimated from a sample.
+     * 
+     * @return footprint of the set 
+     */
+    @Override
+    public Footprint footprint()
+    {
+        long array_bytes = num_tables * Footprint.referenceArrayBytes(tables[0].elements.length);
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), size(), Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(array_bytes, key_bytes, size(), capacity());
+    }
+    
+    /**
+     * Immutable copy with a compact layout, for sets that are only queried from now on. 
+     * 
+     * @return a new frozen set with the same elements
+     */
+    public FrozenCuckooSet freeze()
+    {
+        return FrozenCuckooSet.of(this);
+    }
+    
+    /**
+     * Identifies snapshot files.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4b6f656b; // "Koek"
+    private static final int SNAPSHOT_VERSION = 1;
+    /**
+     * Snapshot with {@link Long} keys only, stored as 64-bit values.
+     */
+    private static final int SNAPSHOT_LONG_KEYS = 0;
+    /**
+     * Snapshot with arbitrary keys, stored by Java serialization.
+     */
+    private static final int SNAPSHOT_OBJECT_KEYS = 1;
+    /**
+     * Header length in snapshot files is a multiple of this; table data starts right after the header. 
+     */
+    private static final int SNAPSHOT_HEADER_BYTES = 64;
+    /**
+     * Bytes in the snapshot header before the tables' headers. 
+     */
+    private static final int SNAPSHOT_PREAMBLE_BYTES = 20;
+    /**
+     * Bytes in the snapshot header for each table. 
+     */
+    private static final int SNAPSHOT_TABLE_HEADER_BYTES = 20;
+    
+    /**
+     * Snapshot header length. 
+     * 
+     * @param num_tables number of tables
+     * @return header length, padded to a multiple of {@link #SNAPSHOT_HEADER_BYTES}
+     */
+    private static int snapshotHeaderBytes(int num_tables)
+    {
+        int unpadded = SNAPSHOT_PREAMBLE_BYTES + num_tables * SNAPSHOT_TABLE_HEADER_BYTES;
+        return (unpadded + SNAPSHOT_HEADER_BYTES - 1) / SNAPSHOT_HEADER_BYTES * SNAPSHOT_HEADER_BYTES;
+    }
+    /**
+     * Number of key values mapped into memory at once when loading a snapshot.
+     */
+    private static final int SNAPSHOT_MAPPED_LONGS = 1 << 24;
+    
+    /**
+     * Writes the set into a file, with the hash functions and the exact cell layout, 
+     * so that {@link #readSnapshot(java.nio.file.Path) } restores it without rehashing. 
+     * 
+     * File layout (big-endian): a header with format identifiers, number of tables, 
+     * capacity bits, key type, and hash factors and sizes for each table, 
+     * padded to a multiple of {@value #SNAPSHOT_HEADER_BYTES} bytes; 
+     * then for each table, an occupancy bitmap and, when all keys are {@link Long}, the key values
+     * of the occupied cells. Other keys are serialized at the end of the file, 
+     * in cell order. 
+     * 
+     * Since keys are placed by their {@link Object#hashCode()}, the snapshot 
+     * can be loaded in another virtual machine only if hash codes are the same 
+     * there (true for {@link Long} and {@link String}, but not for identity hash codes). 
+     * 
+     * @param file destination; overwritten if exists
+     * @throws IOException if writing fails
+     */
+    public void writeSnapshot(Path file) throws IOException
+    {
+        boolean long_keys = true;
+        for (Iterator<Object> iter = iterator(); iter.hasNext() && long_keys;)
+            long_keys = iter.next() instanceof Long;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)))
+        {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(num_tables);
+            out.writeInt(capacity_bits);
+            out.writeInt(long_keys ? SNAPSHOT_LONG_KEYS : SNAPSHOT_OBJECT_KEYS);
+            for (SingleOccupancyTable table: tables)
+                table.writeHeader(out);
+            while (out.size() < snapshotHeaderBytes(num_tables)) out.writeByte(0);
+            
+            for (SingleOccupancyTable table: tables)
+                table.writeCells(out, long_keys);
+            if (!long_keys)
+            {
+                ObjectOutputStream object_out = new ObjectOutputStream(out);
+                for (SingleOccupancyTable table: tables)
+                    table.writeObjects(object_out);
+                object_out.flush();
+            }
+        }
+    }
+    
+    /**
+     * Loads a set written by {@link #writeSnapshot(java.nio.file.Path) }. 
+     * Cells are restored at their saved positions, with the saved hash functions; 
+     * {@link Long} keys are read through memory mapping. 
+     * 
+     * @param file snapshot file
+     * @return a new set with the same content and layout
+     * @throws IOException if the file cannot be read, is not a snapshot, or contains unknown classes
+     */
+    public static CuckooHashingSet readSnapshot(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+            while (header.hasRemaining())
+                if (channel.read(header) < 0)
+                    throw new IOException("Truncated snapshot header in "+file);
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC)
+                throw new IOException("Not a snapshot file: "+file);
+            int version = header.getInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new IOException("Unsupported snapshot version "+version+" in "+file);
+            int num_tables = header.getInt();
+            if (num_tables < 2 || num_tables > MAX_TABLES)
+                throw new IOException("Unsupported number of tables "+num_tables+" in "+file);
+            int cap_bits = header.getInt();
+            int key_type = header.getInt();
+            if (cap_bits < 4 || cap_bits > 30 || (key_type != SNAPSHOT_LONG_KEYS && key_type != SNAPSHOT_OBJECT_KEYS))
+                throw new IOException("Corrupt snapshot header in "+file);
+            int header_bytes = snapshotHeaderBytes(num_tables);
+            if (header_bytes > SNAPSHOT_HEADER_BYTES)
+            {
+                ByteBuffer long_header = ByteBuffer.allocate(header_bytes);
+                header.rewind();
+                long_header.put(header);
+                while (long_header.hasRemaining())
+                    if (channel.read(long_header) < 0)
+                        throw new IOException("Truncated snapshot header in "+file);
+                long_header.flip();
+                long_header.position(SNAPSHOT_PREAMBLE_BYTES);
+                header = long_header;
+            }
+            
+            CuckooHashingSet set = new CuckooHashingSet(capacity(num_tables, cap_bits), num_tables, false);
+            for (int t = 0; t < num_tables; t++)
+                set.tables[t] = SingleOccupancyTable.readHeader(header, cap_bits);
+            
+            if (key_type == SNAPSHOT_LONG_KEYS)
+            {
+                long position = header_bytes;
+                for (SingleOccupancyTable table: set.tables)
+                    position = table.readMappedCells(channel, position);
+            } else
+            {
+                channel.position(header_bytes);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+                long[][] occupied = new long[num_tables][];
+                for (int t = 0; t < num_tables; t++)
+                    occupied[t] = set.tables[t].readOccupancy(in);
+                ObjectInputStream object_in = new ObjectInputStream(in);
+                try
+                {
+                    for (int t = 0; t < num_tables; t++)
+                        set.tables[t].readObjects(object_in, occupied[t]);
+                } catch (ClassNotFoundException E)
+                {
+                    throw new IOException("Unknown key class in snapshot "+file, E);
+                }
+            }
+            return set;
+        }
+    }
+    
     @Override
     public Iterator<Object> iterator()
     {
         return new Iterator<Object>()
         {
-            private final Iterator<Object> iter1 = table1.iterator();
-            private final Iterator<Object> iter2 = table2.iterator();
+            private int table_idx = 0;
+            private Iterator<Object> iter = tables[0].iterator();
 
             @Override
             public boolean hasNext()
             {
-              return (this.iter1.hasNext()) || (this.iter2.hasNext());
+              while (!iter.hasNext() && table_idx+1 < num_tables)
+                  iter = tables[++table_idx].iterator();
+              return iter.hasNext();
             }
 
             @Override
             public Object next()
             {
-              if (iter1.hasNext()) return iter1.next();
-              return iter2.next();
+              hasNext();
+              return iter.next();
             }
         };
     }
@@ -213,15 +1036,15 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
         /**
          * Factor used in hash function
          */
-        private final int hfact1;
+        private int hfact1;
         /**
          * Factor used in hash function
          */
-        private final int hfact2;
+        private int hfact2;
         /**
          * Factor used in hash function
          */
-        private final int hfact3;
+        private int hfact3;
         /**
          * Bit shift used in hash function
          */
@@ -236,14 +1059,53 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
         private long n;
 
         SingleOccupancyTable(int cap_bits)
+        {
+            this(cap_bits, new Random());
+        }
+        
+        private SingleOccupancyTable(int cap_bits, Random RND)
+        {
+            this(cap_bits, RND.nextInt(), RND.nextInt(), RND.nextInt());
+        }
+        
+        /**
+         * Instantiation with given hash function.
+         * 
+         * @param cap_bits table size is 2<sup><var>cap_bits</var></sup>
+         * @param hfact1 hash factor
+         * @param hfact2 hash factor
+         * @param hfact3 hash factor
+         */
+        private SingleOccupancyTable(int cap_bits, int hfact1, int hfact2, int hfact3)
         {
             this.elements = new Object[1 << cap_bits];
             this.hshift = (32 - cap_bits);
+            this.hfact1 = hfact1;
+            this.hfact2 = hfact2;
+            this.hfact3 = hfact3;
+            clear();
+        }
+        
+        /**
+         * Picks a new random hash function; the elements are not moved.
+         */
+        void reseed()
+        {
             Random RND = new Random();
             this.hfact1 = RND.nextInt();
             this.hfact2 = RND.nextInt();
             this.hfact3 = RND.nextInt();
-            clear();
+        }
+        
+        /**
+         * Cell of an object by the current hash function.
+         * 
+         * @param o null OK
+         * @return index in {@link #elements}
+         */
+        int indexOf(Object o)
+        {
+            return o == null ? 0 : getIndex(o.hashCode());
         }
         
         /**
@@ -302,6 +1164,18 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
         {
             assert (o != CuckooHashingSet.EMPTY);
             Object nunu = whoSleepsInMyBed(o);
+            return sameElement(nunu, o);
+        }
+        
+        /**
+         * Whether a cell holds an element.
+         * 
+         * @param nunu cell content; {@link #EMPTY} for unoccupied
+         * @param o null OK
+         * @return true if the cell holds an element equal to o
+         */
+        static boolean sameElement(Object nunu, Object o)
+        {
             return ((nunu == null) && (o == nunu)) || ((nunu != null) && (nunu.equals(o)));
         }
 
@@ -334,6 +1208,183 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
         {
             return (int)this.n;
         }
+        
+        /**
+         * Writes the hash function and the number of elements. 
+         * 
+         * @param out snapshot stream
+         * @throws IOException 
+         */
+        void writeHeader(DataOutputStream out) throws IOException
+        {
+            out.writeInt(hfact1);
+            out.writeInt(hfact2);
+            out.writeInt(hfact3);
+            out.writeInt(hshift);
+            out.writeInt(size());
+        }
+        
+        /**
+         * Table with the hash function from a snapshot header, without the elements. 
+         * 
+         * @param header positioned at this table's header 
+         * @param cap_bits table capacity bits
+         * @return empty table
+         * @throws IOException if the header is inconsistent
+         */
+        static SingleOccupancyTable readHeader(ByteBuffer header, int cap_bits) throws IOException
+        {
+            int hfact1 = header.getInt();
+            int hfact2 = header.getInt();
+            int hfact3 = header.getInt();
+            int hshift = header.getInt();
+            int n = header.getInt();
+            if (hshift != 32 - cap_bits || n < 0 || n > (1 << cap_bits))
+                throw new IOException("Corrupt table header in snapshot");
+            SingleOccupancyTable table = new SingleOccupancyTable(cap_bits, hfact1, hfact2, hfact3);
+            table.n = n; // verified when the cells are read 
+            return table;
+        }
+        
+        /**
+         * Writes the occupancy bitmap, followed by the keys if they are all {@link Long}.
+         * 
+         * @param out snapshot stream
+         * @param long_keys whether to write the keys  
+         * @throws IOException 
+         */
+        void writeCells(DataOutputStream out, boolean long_keys) throws IOException
+        {
+            for (int w = 0; w < elements.length; w += 64)
+            {
+                long bits = 0L;
+                for (int j = 0; j < 64 && w + j < elements.length; j++)
+                    if (elements[w + j] != CuckooHashingSet.EMPTY)
+                        bits |= 1L << j;
+                out.writeLong(bits);
+            }
+            if (long_keys)
+                for (Object x: elements)
+                    if (x != CuckooHashingSet.EMPTY)
+                        out.writeLong((Long) x);
+        }
+        
+        /**
+         * Serializes the keys in cell order. 
+         * 
+         * @param out snapshot stream, after all occupancy bitmaps
+         * @throws IOException 
+         */
+        void writeObjects(ObjectOutputStream out) throws IOException
+        {
+            int num_written = 0;
+            for (Object x: elements)
+                if (x != CuckooHashingSet.EMPTY)
+                {
+                    out.writeObject(x);
+                    if (++num_written % 1024 == 0) 
+                        out.reset(); // do not keep back-references to all keys
+                }
+        }
+        
+        /**
+         * Number of 64-bit words in the occupancy bitmap.
+         */
+        private int occupancyWords()
+        {
+            return (elements.length + 63) / 64;
+        }
+        
+        /**
+         * Fills the cells from a memory-mapped snapshot with {@link Long} keys.
+         * 
+         * @param channel snapshot file
+         * @param position start of this table's occupancy bitmap 
+         * @return position after this table's keys
+         * @throws IOException if the file is truncated or the bitmap does not match the table size
+         */
+        long readMappedCells(FileChannel channel, long position) throws IOException
+        {
+            int num_words = occupancyWords();
+            long bitmap_bytes = 8L * num_words;
+            long keys_bytes = 8L * n;
+            if (position + bitmap_bytes + keys_bytes > channel.size())
+                throw new IOException("Truncated snapshot");
+            LongBuffer bitmap = channel.map(FileChannel.MapMode.READ_ONLY, position, bitmap_bytes).asLongBuffer();
+            position += bitmap_bytes;
+            
+            LongBuffer keys = null;
+            long keys_left = n;
+            for (int w = 0; w < num_words; w++)
+            {
+                long bits = bitmap.get(w);
+                while (bits != 0L)
+                {
+                    int cell_idx = 64 * w + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1L;
+                    if (cell_idx >= elements.length)
+                        throw new IOException("Corrupt occupancy bitmap in snapshot");
+                    if (keys == null || !keys.hasRemaining())
+                    {
+                        if (keys_left == 0L)
+                            throw new IOException("Corrupt occupancy bitmap in snapshot");
+                        int num_mapped = (int) Math.min(keys_left, SNAPSHOT_MAPPED_LONGS);
+                        keys = channel.map(FileChannel.MapMode.READ_ONLY, position, 8L * num_mapped).asLongBuffer();
+                        position += 8L * num_mapped;
+                        keys_left -= num_mapped;
+                    }
+                    elements[cell_idx] = keys.get();
+                }
+            }
+            if (keys_left != 0L || (keys != null && keys.hasRemaining()))
+                throw new IOException("Corrupt occupancy bitmap in snapshot");
+            return position;
+        }
+        
+        /**
+         * Reads the occupancy bitmap.
+         * 
+         * @param in snapshot stream at this table's bitmap
+         * @return bitmap of occupied cells
+         * @throws IOException 
+         */
+        long[] readOccupancy(DataInputStream in) throws IOException
+        {
+            long[] bitmap = new long[occupancyWords()];
+            long num_occupied = 0L;
+            for (int w = 0; w < bitmap.length; w++)
+            {
+                bitmap[w] = in.readLong();
+                num_occupied += Long.bitCount(bitmap[w]);
+            }
+            if (num_occupied != n)
+                throw new IOException("Corrupt occupancy bitmap in snapshot");
+            return bitmap;
+        }
+        
+        /**
+         * Fills the occupied cells with deserialized keys. 
+         * 
+         * @param in snapshot stream, positioned at this table's first key 
+         * @param bitmap occupancy bitmap from {@link #readOccupancy(java.io.DataInputStream) }
+         * @throws IOException
+         * @throws ClassNotFoundException 
+         */
+        void readObjects(ObjectInputStream in, long[] bitmap) throws IOException, ClassNotFoundException
+        {
+            for (int w = 0; w < bitmap.length; w++)
+            {
+                long bits = bitmap[w];
+                while (bits != 0L)
+                {
+                    int cell_idx = 64 * w + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1L;
+                    if (cell_idx >= elements.length)
+                        throw new IOException("Corrupt occupancy bitmap in snapshot");
+                    elements[cell_idx] = in.readObject();
+                }
+            }
+        }
 
         Iterator<Object> iterator()
         {
@@ -362,7 +1413,7 @@ public class CuckooHashingSet extends AbstractSet<Object> implements Set<Object>
                 @Override
                 public Object next()
                 {
-                    Object x = elements[this.cell_idx];
+                    Object x = elements[this.cell_idx++];
                     forwardToNext();
                     return x;
                 }            
@@ -0,0 +1,566 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Set of {@link Long} identifiers with compact storage for dense ranges, 
+ * in the spirit of Roaring bitmaps [Chambi, Lemire, Kaser and Godin, SPE 2016]. 
+ * The identifiers are grouped into chunks of 2<sup>16</sup> by their high 48 bits. 
+ * A chunk is a bitmap of 8 kilobytes if it holds more than {@value #BITMAP_MIN_CARDINALITY} 
+ * elements, which costs at most 2 bits per element and 1 bit per element in a 
+ * fully used range; sparser chunks are small linear probing tables of 16-bit values. 
+ * Chunks are found by hashing their high bits, and the last used chunk is cached, 
+ * so that lookups take constant time, which is the common case with 
+ * monotonically allocated identifiers. 
+ * 
+ * There are no key objects: {@link #iterator() } creates {@link Long}s on the fly. 
+ * Only {@link Long} elements can be added; null is not supported. 
+ * Iteration order is by chunk in no particular order, and within a chunk, ascending for bitmaps. 
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class DenseIdSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint
+{
+    /**
+     * Bits of the low part within a chunk.
+     */
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    /**
+     * A sparse chunk becomes a bitmap when its cardinality exceeds this 
+     * (its table would be larger than the bitmap).
+     */
+    private static final int BITMAP_MIN_CARDINALITY = 3072;
+    /**
+     * A bitmap becomes sparse when its cardinality drops below this.
+     */
+    private static final int SPARSE_MAX_CARDINALITY = 1024;
+    private static final int DEFAULT_DIRECTORY_CAPACITY = 16;
+    
+    public DenseIdSet()
+    {
+        this.chunk_keys = new long[DEFAULT_DIRECTORY_CAPACITY];
+        this.chunks = new Chunk[DEFAULT_DIRECTORY_CAPACITY];
+    }
+    
+    /**
+     * Directory: high bits of the chunks, with linear probing.
+     */
+    private long[] chunk_keys;
+    /**
+     * Directory: chunks at the same index as their key; null for empty slot.
+     */
+    private Chunk[] chunks;
+    private int num_chunks = 0;
+    private int size = 0;
+    /**
+     * Last chunk accessed, with its high bits.
+     */
+    private long last_key;
+    private Chunk last_chunk = null;
+    
+    /**
+     * Elements sharing the high bits. 
+     */
+    private static abstract class Chunk
+    {
+        int cardinality = 0;
+        abstract boolean contains(int low);
+        abstract boolean add(int low);
+        abstract boolean remove(int low);
+        /**
+         * Iteration: first occupied position at or after a given one.
+         * 
+         * @param pos iteration position
+         * @return -1 if none
+         */
+        abstract int nextPosition(int pos);
+        /**
+         * Iteration: value at an occupied position.
+         */
+        abstract int valueAt(int pos);
+        abstract long arrayBytes();
+        abstract int slots();
+    }
+    
+    /**
+     * Chunk with one bit per possible value.
+     */
+    private static final class BitmapChunk extends Chunk
+    {
+        private final long[] words = new long[CHUNK_SIZE / 64];
+        
+        @Override
+        boolean contains(int low)
+        {
+            return (words[low >>> 6] & (1L << low)) != 0L;
+        }
+        
+        @Override
+        boolean add(int low)
+        {
+            long w = words[low >>> 6];
+            long bit = 1L << low;
+            if ((w & bit) != 0L) return false;
+            words[low >>> 6] = w | bit;
+            cardinality++;
+            return true;
+        }
+        
+        @Override
+        boolean remove(int low)
+        {
+            long w = words[low >>> 6];
+            long bit = 1L << low;
+            if ((w & bit) == 0L) return false;
+            words[low >>> 6] = w & ~bit;
+            cardinality--;
+            return true;
+        }
+        
+        @Override
+        int nextPosition(int pos)
+        {
+            if (pos >= CHUNK_SIZE) return -1;
+            int i = pos >>> 6;
+            long w = words[i] & (-1L << pos);
+            while (w == 0L)
+            {
+                if (++i == words.length) return -1;
+                w = words[i];
+            }
+            return (i << 6) + Long.numberOfTrailingZeros(w);
+        }
+        
+        @Override
+        int valueAt(int pos)
+        {
+            return pos;
+        }
+        
+        @Override
+        long arrayBytes()
+        {
+            return Footprint.primitiveArrayBytes(words.length, 8);
+        }
+        
+        @Override
+        int slots()
+        {
+            return CHUNK_SIZE;
+        }
+    }
+    
+    /**
+     * Chunk with a linear probing table of 16-bit values; 
+     * 0 denotes an empty cell, and the value 0 is kept in a flag.
+     */
+    private static final class SparseChunk extends Chunk
+    {
+        private char[] cells = new char[8];
+        private boolean has_zero = false;
+        
+        private static int home(int low, int mask)
+        {
+            return ((low * 0x9e3779b1) >>> 16) & mask;
+        }
+        
+        private int search(int low)
+        {
+            int mask = cells.length - 1;
+            int i = home(low, mask);
+            int c;
+            while ((c = cells[i]) != 0 && c != low)
+                i = (i + 1) & mask;
+            return i;
+        }
+        
+        @Override
+        boolean contains(int low)
+        {
+            if (low == 0) return has_zero;
+            return cells[search(low)] != 0;
+        }
+        
+        @Override
+        boolean add(int low)
+        {
+            if (low == 0)
+            {
+                if (has_zero) return false;
+                has_zero = true;
+            } else
+            {
+                int i = search(low);
+                if (cells[i] != 0) return false;
+                cells[i] = (char) low;
+                if (4 * (cardinality + 1) > 3 * cells.length)
+                    grow();
+            }
+            cardinality++;
+            return true;
+        }
+        
+        private void grow()
+        {
+            char[] old_cells = cells;
+            cells = new char[2 * old_cells.length];
+            int mask = cells.length - 1;
+            for (char c: old_cells)
+                if (c != 0)
+                {
+                    int i = home(c, mask);
+                    while (cells[i] != 0) i = (i + 1) & mask;
+                    cells[i] = c;
+                }
+        }
+        
+        @Override
+        boolean remove(int low)
+        {
+            if (low == 0)
+            {
+                if (!has_zero) return false;
+                has_zero = false;
+            } else
+            {
+                int i = search(low);
+                if (cells[i] == 0) return false;
+                // backward shift (Knuth's Algorithm R)
+                int mask = cells.length - 1;
+                int hole = i;
+                int j = i;
+                while (true)
+                {
+                    j = (j + 1) & mask;
+                    int c = cells[j];
+                    if (c == 0) break;
+                    if (((j - home(c, mask)) & mask) >= ((j - hole) & mask))
+                    {
+                        cells[hole] = (char) c;
+                        hole = j;
+                    }
+                }
+                cells[hole] = 0;
+            }
+            cardinality--;
+            return true;
+        }
+        
+        @Override
+        int nextPosition(int pos)
+        {
+            while (pos < cells.length && cells[pos] == 0) pos++;
+            if (pos < cells.length) return pos;
+            return (pos == cells.length && has_zero) ? pos : -1;
+        }
+        
+        @Override
+        int valueAt(int pos)
+        {
+            return pos == cells.length ? 0 : cells[pos];
+        }
+        
+        @Override
+        long arrayBytes()
+        {
+            return Footprint.primitiveArrayBytes(cells.length, 2);
+        }
+        
+        @Override
+        int slots()
+        {
+            return cells.length;
+        }
+    }
+    
+    /**
+     * 64-bit scrambling (MurmurHash3 finalizer).
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * Directory search.
+     * 
+     * @param key high bits
+     * @return directory index where found, or where it should be placed
+     */
+    private int directoryIndex(long key)
+    {
+        int mask = chunks.length - 1;
+        int i = (int) mix(key) & mask;
+        while (chunks[i] != null && chunk_keys[i] != key)
+            i = (i + 1) & mask;
+        return i;
+    }
+    
+    /**
+     * Chunk for the given high bits.
+     * 
+     * @return null if no such chunk
+     */
+    private Chunk chunk(long key)
+    {
+        if (last_chunk != null && last_key == key) return last_chunk;
+        Chunk c = chunks[directoryIndex(key)];
+        if (c != null)
+        {
+            last_key = key;
+            last_chunk = c;
+        }
+        return c;
+    }
+    
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        if (!(o instanceof Long)) return false;
+        return contains(((Long) o).longValue());
+    }
+    
+    /**
+     * Membership test without boxing.
+     * 
+     * @param id identifier
+     * @return whether the set contains it
+     */
+    public boolean contains(long id)
+    {
+        Chunk c = chunk(id >> CHUNK_BITS);
+        return c != null && c.contains((int) id & (CHUNK_SIZE - 1));
+    }
+    
+    /**
+     * Insertion.
+     * 
+     * @param o a {@link Long}
+     * @return true if it was not in the set 
+     * @throws IllegalArgumentException for other types
+     */
+    @Override
+    public boolean add(Object o)
+    {
+        if (o instanceof Long) return add(((Long) o).longValue());
+        if (o == null) throw new UnsupportedOperationException("Cannot add null element in this implementation.");
+        throw new IllegalArgumentException("Elements must be Long: "+o.getClass().getCanonicalName());
+    }
+    
+    /**
+     * Insertion without boxing.
+     * 
+     * @param id identifier
+     * @return true if it was not in the set
+     */
+    public boolean add(long id)
+    {
+        long key = id >> CHUNK_BITS;
+        int low = (int) id & (CHUNK_SIZE - 1);
+        Chunk c = chunk(key);
+        if (c == null)
+        {
+            int i = directoryIndex(key);
+            c = new SparseChunk();
+            chunk_keys[i] = key;
+            chunks[i] = c;
+            num_chunks++;
+            if (4 * num_chunks > 3 * chunks.length)
+                growDirectory();
+            last_key = key;
+            last_chunk = c;
+        } else if (c.cardinality == BITMAP_MIN_CARDINALITY && c instanceof SparseChunk)
+        {
+            if (c.contains(low)) return false;
+            c = convert(key, c, new BitmapChunk());
+        }
+        if (!c.add(low)) return false;
+        size++;
+        return true;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        if (!(o instanceof Long)) return false;
+        return remove(((Long) o).longValue());
+    }
+    
+    /**
+     * Removal without boxing.
+     * 
+     * @param id identifier
+     * @return true if it was in the set
+     */
+    public boolean remove(long id)
+    {
+        long key = id >> CHUNK_BITS;
+        Chunk c = chunk(key);
+        if (c == null || !c.remove((int) id & (CHUNK_SIZE - 1))) return false;
+        size--;
+        if (c.cardinality == 0)
+            removeChunk(key);
+        else if (c.cardinality < SPARSE_MAX_CARDINALITY && c instanceof BitmapChunk)
+            convert(key, c, new SparseChunk());
+        return true;
+    }
+    
+    @Override
+    public void clear()
+    {
+        this.chunk_keys = new long[DEFAULT_DIRECTORY_CAPACITY];
+        this.chunks = new Chunk[DEFAULT_DIRECTORY_CAPACITY];
+        this.num_chunks = 0;
+        this.size = 0;
+        this.last_chunk = null;
+    }
+    
+    /**
+     * Replaces a chunk by another representation with the same elements. 
+     * 
+     * @return the new chunk 
+     */
+    private Chunk convert(long key, Chunk old_chunk, Chunk new_chunk)
+    {
+        for (int pos = old_chunk.nextPosition(0); pos >= 0; pos = old_chunk.nextPosition(pos + 1))
+            new_chunk.add(old_chunk.valueAt(pos));
+        chunks[directoryIndex(key)] = new_chunk;
+        last_key = key;
+        last_chunk = new_chunk;
+        return new_chunk;
+    }
+    
+    private void growDirectory()
+    {
+        long[] old_keys = chunk_keys;
+        Chunk[] old_chunks = chunks;
+        chunk_keys = new long[2 * old_keys.length];
+        chunks = new Chunk[2 * old_chunks.length];
+        for (int j = 0; j < old_chunks.length; j++)
+            if (old_chunks[j] != null)
+            {
+                int i = directoryIndex(old_keys[j]);
+                chunk_keys[i] = old_keys[j];
+                chunks[i] = old_chunks[j];
+            }
+    }
+    
+    /**
+     * Removes an empty chunk from the directory, with backward shifting.
+     */
+    private void removeChunk(long key)
+    {
+        last_chunk = null;
+        int mask = chunks.length - 1;
+        int hole = directoryIndex(key);
+        int j = hole;
+        while (true)
+        {
+            j = (j + 1) & mask;
+            if (chunks[j] == null) break;
+            int home = (int) mix(chunk_keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask))
+            {
+                chunks[hole] = chunks[j];
+                chunk_keys[hole] = chunk_keys[j];
+                hole = j;
+            }
+        }
+        chunks[hole] = null;
+        num_chunks--;
+    }
+    
+    /**
+     * Memory usage of the directory and the chunks; there are no key objects.
+     * 
+     * @return footprint of the set; slots are bits in bitmaps and cells in sparse chunks
+     */
+    @Override
+    public Footprint footprint()
+    {
+        long array_bytes = Footprint.primitiveArrayBytes(chunk_keys.length, 8) + Footprint.referenceArrayBytes(chunks.length);
+        long total_slots = 0L;
+        for (Chunk c: chunks)
+            if (c != null)
+            {
+                array_bytes += c.arrayBytes();
+                total_slots += c.slots();
+            }
+        return new Footprint(array_bytes, 0L, size, total_slots);
+    }
+    
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private int chunk_idx = -1;
+            private int pos = -1;
+            {
+                advance();
+            }
+            
+            private void advance()
+            {
+                if (chunk_idx >= 0)
+                    pos = chunks[chunk_idx].nextPosition(pos + 1);
+                while (pos < 0 && ++chunk_idx < chunks.length)
+                    if (chunks[chunk_idx] != null)
+                        pos = chunks[chunk_idx].nextPosition(0);
+            }
+            
+            @Override
+            public boolean hasNext()
+            {
+                return chunk_idx < chunks.length;
+            }
+            
+            @Override
+            public Object next()
+            {
+                if (!hasNext()) throw new NoSuchElementException();
+                long id = (chunk_keys[chunk_idx] << CHUNK_BITS) | chunks[chunk_idx].valueAt(pos);
+                advance();
+                return id;
+            }
+        };
+    }
+}
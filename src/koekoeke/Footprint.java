@@ -0,0 +1,257 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+
+/**
+ * Memory used by a hash table: backing arrays, key objects, and slot occupancy. 
+ * Object sizes are estimated from the layout of the running virtual machine 
+ * (reference width, object and array headers, 8-byte alignment). 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public final class Footprint 
+{
+    /**
+     * Size of an object reference in bytes.
+     */
+    public static final int REFERENCE_BYTES;
+    /**
+     * Size of an object header in bytes.
+     */
+    public static final int OBJECT_HEADER_BYTES;
+    /**
+     * Size of an array header in bytes (object header and length).
+     */
+    public static final int ARRAY_HEADER_BYTES;
+    /**
+     * Object alignment in the heap.
+     */
+    private static final int ALIGNMENT = 8;
+    /**
+     * Default number of keys examined by {@link #sampleKeyBytes(java.util.Iterator, long, int) }.
+     */
+    public static final int DEFAULT_KEY_SAMPLES = 1024;
+    
+    static
+    {
+        boolean is64 = !"32".equals(System.getProperty("sun.arch.data.model"));
+        boolean compressed = is64;
+        try
+        {
+            com.sun.management.HotSpotDiagnosticMXBean hotspot 
+                    = ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            compressed = is64 && Boolean.parseBoolean(hotspot.getVMOption("UseCompressedOops").getValue());
+        } catch (RuntimeException | LinkageError E)
+        {
+            // not HotSpot; stay with the default guess
+        }
+        if (!is64)
+        {
+            REFERENCE_BYTES = 4;
+            OBJECT_HEADER_BYTES = 8;
+            ARRAY_HEADER_BYTES = 12;
+        } else if (compressed)
+        {
+            REFERENCE_BYTES = 4;
+            OBJECT_HEADER_BYTES = 12;
+            ARRAY_HEADER_BYTES = 16;
+        } else
+        {
+            REFERENCE_BYTES = 8;
+            OBJECT_HEADER_BYTES = 16;
+            ARRAY_HEADER_BYTES = 20;
+        }
+    }
+    
+    /**
+     * Instantiation with all measures. 
+     * 
+     * @param array_bytes bytes in backing arrays
+     * @param key_bytes bytes in key objects referenced from the arrays
+     * @param occupied_slots number of slots holding an element
+     * @param total_slots total number of slots
+     */
+    public Footprint(long array_bytes, long key_bytes, long occupied_slots, long total_slots)
+    {
+        this.array_bytes = array_bytes;
+        this.key_bytes = key_bytes;
+        this.occupied_slots = occupied_slots;
+        this.total_slots = total_slots;
+    }
+    
+    /**
+     * Bytes used by the backing arrays, including headers.
+     */
+    public final long array_bytes;
+    /**
+     * Estimated bytes used by the key objects.
+     */
+    public final long key_bytes;
+    /**
+     * Number of slots holding an element.
+     */
+    public final long occupied_slots;
+    /**
+     * Total number of slots in the backing arrays.
+     */
+    public final long total_slots;
+    
+    /**
+     * Unoccupied slots.
+     * 
+     * @return total minus occupied slots
+     */
+    public long wastedSlots()
+    {
+        return total_slots - occupied_slots;
+    }
+    
+    /**
+     * Total memory usage.
+     * 
+     * @return array and key bytes
+     */
+    public long totalBytes()
+    {
+        return array_bytes + key_bytes;
+    }
+    
+    /**
+     * Memory overhead of the table itself per element, without the keys.
+     * 
+     * @return array bytes per occupied slot; NaN if there are no elements
+     */
+    public double overheadPerElement()
+    {
+        if (occupied_slots == 0L) return Double.NaN;
+        return array_bytes / ((double) occupied_slots);
+    }
+    
+    /**
+     * Size of an object array. 
+     * 
+     * @param length array length
+     * @return bytes used by the array
+     */
+    public static long referenceArrayBytes(long length)
+    {
+        return align(ARRAY_HEADER_BYTES + length * REFERENCE_BYTES);
+    }
+    
+    /**
+     * Size of a primitive array. 
+     * 
+     * @param length array length
+     * @param element_bytes size of an array element (1 for byte, 4 for int etc.)
+     * @return bytes used by the array
+     */
+    public static long primitiveArrayBytes(long length, int element_bytes)
+    {
+        return align(ARRAY_HEADER_BYTES + length * element_bytes);
+    }
+    
+    /**
+     * Shallow size estimate for a key object. Boxed primitives, strings 
+     * (with their character arrays) and primitive arrays are 
+     * sized exactly; other classes are counted as an object header and a field.
+     * 
+     * @param key null OK
+     * @return estimated size in bytes; 0 for null
+     */
+    public static long keyBytes(Object key)
+    {
+        if (key == null) return 0L;
+        if (key instanceof Long || key instanceof Double)
+            return align(OBJECT_HEADER_BYTES + 8);
+        if (key instanceof Integer || key instanceof Float)
+            return align(OBJECT_HEADER_BYTES + 4);
+        if (key instanceof Short || key instanceof Character)
+            return align(OBJECT_HEADER_BYTES + 2);
+        if (key instanceof Byte || key instanceof Boolean)
+            return align(OBJECT_HEADER_BYTES + 1);
+        if (key instanceof String)
+        {
+            String s = (String) key;
+            boolean latin1 = true;
+            for (int i = 0; i < s.length() && latin1; i++)
+                latin1 = s.charAt(i) < 256;
+            // hash, coder, hashIsZero and the array reference
+            return align(OBJECT_HEADER_BYTES + 4 + 2 + REFERENCE_BYTES)
+                    + primitiveArrayBytes(s.length(), latin1 ? 1 : 2);
+        }
+        if (key instanceof byte[]) return primitiveArrayBytes(((byte[]) key).length, 1);
+        if (key instanceof int[]) return primitiveArrayBytes(((int[]) key).length, 4);
+        if (key instanceof long[]) return primitiveArrayBytes(((long[]) key).length, 8);
+        if (key instanceof char[]) return primitiveArrayBytes(((char[]) key).length, 2);
+        return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES);
+    }
+    
+    /**
+     * Estimates the total size of the keys from a sample. 
+     * Hash tables iterate in hash order, so the first few elements are 
+     * a fair sample.
+     * 
+     * @param keys iterator over the keys
+     * @param num_keys total number of keys 
+     * @param max_samples at most this many keys are sized
+     * @return estimated bytes for all keys
+     */
+    public static long sampleKeyBytes(Iterator<?> keys, long num_keys, int max_samples)
+    {
+        long sampled_bytes = 0L;
+        int num_samples = 0;
+        while (num_samples < max_samples && keys.hasNext())
+        {
+            sampled_bytes += keyBytes(keys.next());
+            num_samples++;
+        }
+        if (num_samples == 0) return 0L;
+        if (num_samples == num_keys) return sampled_bytes;
+        return Math.round(sampled_bytes * (num_keys / (double) num_samples));
+    }
+    
+    private static long align(long bytes)
+    {
+        return (bytes + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+    
+    /**
+     * String for tabulated printing.
+     * 
+     * @return tab-separated values: array bytes, key bytes, occupied slots, wasted slots
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(this.array_bytes);
+        sb.append("\t").append(this.key_bytes);
+        sb.append("\t").append(this.occupied_slots);
+        sb.append("\t").append(wastedSlots());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Immutable set with a static cuckoo layout. Every element 
+ * sits in one of its two candidate buckets of {@value #BUCKET_SIZE} cells 
+ * (bucketized cuckoo hashing with 2 choices), so that the table can 
+ * be filled up to 95% at construction time, while a search examines at most two buckets.  
+ * Hash seeds are searched offline: the construction tries several seeds at decreasing loads 
+ * until all elements can be placed. A few elements that do not fit (for instance, many keys with equal 
+ * hash codes) go to a small stash that is scanned linearly. 
+ * 
+ * Instances are built by {@link #of(java.util.Collection) } 
+ * or {@link CuckooHashingSet#freeze() }. 
+ * All fields are final and never modified after construction, so an instance 
+ * can be shared among threads without synchronization. 
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public final class FrozenCuckooSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint
+{
+    /**
+     * Number of cells per bucket.
+     */
+    private static final int BUCKET_SIZE = 4;
+    /**
+     * Load factors tried during construction, in this order. 
+     */
+    private static final double[] LOAD_FACTORS = {0.95, 0.90, 0.85, 0.75, 0.50};
+    /**
+     * Number of hash seeds tried with each load factor.
+     */
+    private static final int SEED_ATTEMPTS = 8;
+    /**
+     * Maximum number of evictions for placing one element. 
+     */
+    private static final int MAX_KICKS = 500;
+    /**
+     * Maximum number of elements outside the buckets.
+     */
+    private static final int MAX_STASH = 8;
+    
+    /**
+     * Cells, with buckets of {@link #BUCKET_SIZE} consecutive cells; null denotes empty cell.
+     */
+    private final Object[] cells;
+    private final int num_buckets;
+    private final int seed1;
+    private final int seed2;
+    /**
+     * Elements that could not be placed into their buckets.
+     */
+    private final Object[] stash;
+    private final boolean contains_null;
+    private final int size;
+    
+    private FrozenCuckooSet(Layout L, boolean contains_null)
+    {
+        this.cells = L.cells;
+        this.num_buckets = L.num_buckets;
+        this.seed1 = L.seed1;
+        this.seed2 = L.seed2;
+        this.stash = Arrays.copyOf(L.stash, L.stash_size);
+        this.contains_null = contains_null;
+        this.size = L.size + (contains_null ? 1 : 0);
+    }
+    
+    /**
+     * Immutable copy of a collection. Duplicates (by {@link Object#equals(java.lang.Object) }) 
+     * are stored once. 
+     * 
+     * @param elements null elements OK
+     * @return a new frozen set
+     * @throws IllegalStateException if more than {@value #MAX_STASH} elements cannot be placed with any seed (practically impossible unless hash codes collide massively)
+     */
+    public static FrozenCuckooSet of(Collection<?> elements)
+    {
+        boolean contains_null = false;
+        int n = 0;
+        for (Object x: elements)
+            if (x == null) contains_null = true;
+            else n++;
+        
+        for (double load: LOAD_FACTORS)
+        {
+            int num_buckets = Math.max(1, (int) Math.ceil(n / (BUCKET_SIZE * load)));
+            for (int attempt = 0; attempt < SEED_ATTEMPTS; attempt++)
+            {
+                Random RND = new Random(31L * num_buckets + attempt);
+                Layout L = new Layout(num_buckets, RND.nextInt(), RND.nextInt());
+                if (L.placeAll(elements, RND))
+                    return new FrozenCuckooSet(L, contains_null);
+            }
+        }
+        throw new IllegalStateException("Cannot place elements: too many equal hash codes");
+    }
+    
+    /**
+     * Hash value scrambling (MurmurHash3 finalizer).
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+    
+    /**
+     * First cell of the bucket for a hash code.
+     * 
+     * @param h hash code
+     * @param seed hash function seed
+     * @param num_buckets number of buckets
+     * @return cell index 
+     */
+    private static int bucketStart(int h, int seed, int num_buckets)
+    {
+        long x = mix(h ^ seed) & 0xffffffffL;
+        return ((int) ((x * num_buckets) >>> 32)) * BUCKET_SIZE;
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        if (o == null) return contains_null;
+        int h = o.hashCode();
+        int b = bucketStart(h, seed1, num_buckets);
+        for (int j = b; j < b + BUCKET_SIZE; j++)
+        {
+            Object x = cells[j];
+            if (x != null && x.equals(o)) return true;
+        }
+        b = bucketStart(h, seed2, num_buckets);
+        for (int j = b; j < b + BUCKET_SIZE; j++)
+        {
+            Object x = cells[j];
+            if (x != null && x.equals(o)) return true;
+        }
+        for (Object x: stash)
+            if (x.equals(o)) return true;
+        return false;
+    }
+    
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    
+    /**
+     * Not supported.
+     * 
+     * @param does_not_matter
+     * @return 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean add(Object does_not_matter)
+    {
+        throw new UnsupportedOperationException("Frozen set cannot be modified.");
+    }
+    
+    /**
+     * Not supported.
+     * 
+     * @param does_not_matter
+     * @return 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public boolean remove(Object does_not_matter)
+    {
+        throw new UnsupportedOperationException("Frozen set cannot be modified.");
+    }
+    
+    /**
+     * Not supported.
+     * 
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void clear()
+    {
+        throw new UnsupportedOperationException("Frozen set cannot be modified.");
+    }
+    
+    /**
+     * Fraction of occupied cells. 
+     * 
+     * @return value between 0 and 1
+     */
+    public double loadFactor()
+    {
+        return (size - stash.length - (contains_null ? 1 : 0)) / ((double) cells.length);
+    }
+
+    @Override
+    public Footprint footprint()
+    {
+        long array_bytes = Footprint.referenceArrayBytes(cells.length) + Footprint.referenceArrayBytes(stash.length);
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), size, Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(array_bytes, key_bytes, size - (contains_null ? 1 : 0), cells.length + stash.length);
+    }
+    
+    /**
+     * Iterator over the cells, the stash, and finally, null.
+     * 
+     * @return read-only iterator
+     */
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private int cell_idx = 0;
+            private int stash_idx = 0;
+            private boolean null_done = !contains_null;
+            
+            {
+                forwardToNext();
+            }
+            
+            private void forwardToNext()
+            {
+                while (cell_idx < cells.length && cells[cell_idx] == null)
+                    cell_idx++;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return cell_idx < cells.length || stash_idx < stash.length || !null_done;
+            }
+
+            @Override
+            public Object next()
+            {
+                if (cell_idx < cells.length)
+                {
+                    Object x = cells[cell_idx++];
+                    forwardToNext();
+                    return x;
+                } else if (stash_idx < stash.length)
+                    return stash[stash_idx++];
+                else if (!null_done)
+                {
+                    null_done = true;
+                    return null;
+                } else 
+                    throw new NoSuchElementException();
+            }
+        };
+    }
+    
+    /**
+     * Cell layout under construction. 
+     */
+    private static final class Layout
+    {
+        private final Object[] cells;
+        private final int num_buckets;
+        private final int seed1;
+        private final int seed2;
+        private final Object[] stash;
+        private int stash_size;
+        private int size;
+        
+        Layout(int num_buckets, int seed1, int seed2)
+        {
+            this.cells = new Object[num_buckets * BUCKET_SIZE];
+            this.num_buckets = num_buckets;
+            this.seed1 = seed1;
+            this.seed2 = seed2;
+            this.stash = new Object[MAX_STASH];
+            this.stash_size = 0;
+            this.size = 0;
+        }
+        
+        /**
+         * Places the non-null elements by random-walk insertion. 
+         * 
+         * @param elements 
+         * @param RND random source for choosing evicted cells
+         * @return false if the stash overflows 
+         */
+        boolean placeAll(Collection<?> elements, Random RND)
+        {
+            for (Object x: elements)
+            {
+                if (x == null || isPlaced(x)) continue;
+                Object y = place(x, RND);
+                size++;
+                if (y != null)
+                {
+                    if (stash_size == MAX_STASH) return false;
+                    stash[stash_size++] = y;
+                }
+            }
+            return true;
+        }
+        
+        private boolean isPlaced(Object o)
+        {
+            int h = o.hashCode();
+            if (inBucket(bucketStart(h, seed1, num_buckets), o) || inBucket(bucketStart(h, seed2, num_buckets), o))
+                return true;
+            for (int j = 0; j < stash_size; j++)
+                if (stash[j].equals(o)) return true;
+            return false;
+        }
+        
+        private boolean inBucket(int b, Object o)
+        {
+            for (int j = b; j < b + BUCKET_SIZE; j++)
+                if (cells[j] != null && cells[j].equals(o)) return true;
+            return false;
+        }
+        
+        /**
+         * Index of a free cell in a bucket.
+         * 
+         * @param b first cell of the bucket
+         * @return -1 if the bucket is full
+         */
+        private int freeCell(int b)
+        {
+            for (int j = b; j < b + BUCKET_SIZE; j++)
+                if (cells[j] == null) return j;
+            return -1;
+        }
+        
+        /**
+         * Inserts an element, evicting others if necessary. 
+         * 
+         * @param x new element
+         * @param RND random source
+         * @return null if everything is placed, or the element left without a cell
+         */
+        private Object place(Object x, Random RND)
+        {
+            Object y = x;
+            int from = -1; // bucket from which y was evicted
+            for (int kick = 0; kick <= MAX_KICKS; kick++)
+            {
+                int h = y.hashCode();
+                int b1 = bucketStart(h, seed1, num_buckets);
+                int b2 = bucketStart(h, seed2, num_buckets);
+                int target;
+                if (from == -1)
+                {
+                    int j = freeCell(b1);
+                    if (j < 0) j = freeCell(b2);
+                    if (j >= 0)
+                    {
+                        cells[j] = y;
+                        return null;
+                    }
+                    target = RND.nextBoolean() ? b1 : b2;
+                } else 
+                {
+                    target = (from == b1) ? b2 : b1;
+                    int j = freeCell(target);
+                    if (j >= 0)
+                    {
+                        cells[j] = y;
+                        return null;
+                    }
+                }
+                int j = target + RND.nextInt(BUCKET_SIZE);
+                Object evicted = cells[j];
+                cells[j] = y;
+                y = evicted;
+                from = target;
+            }
+            return y;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for hashing stalls: table resizes 
+ * and insertions with long eviction chains or probe sequences. 
+ * Enable them in a recording by name (<code>koekoeke.Resize</code>, 
+ * <code>koekoeke.LongInsertion</code>), or with the <code>Hashing</code> category. 
+ * When no recording is running, an event costs the allocation of a small object that the 
+ * JIT compiler usually eliminates, and insertion events are not even instantiated unless 
+ * the chain is longer than {@link #DISPLACEMENT_THRESHOLD}. Tables that need extra work 
+ * to measure the displacement check {@link #isLongInsertionEnabled()} first. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public final class HashingEvents 
+{
+    private HashingEvents() {}
+    
+    /**
+     * Insertions with at least this many evictions or probes are reported. 
+     * Set by the system property <code>koekoeke.displacementThreshold</code>; 
+     * default is 32. 
+     */
+    public static final int DISPLACEMENT_THRESHOLD = Integer.getInteger("koekoeke.displacementThreshold", 32);
+    
+    /**
+     * Reallocation or reseeding of a table. The event duration 
+     * is the rehash time. 
+     */
+    @Name("koekoeke.Resize")
+    @Label("Hash Table Resize")
+    @Category({"Hashing"})
+    @Description("Rehashing of a hash table into a new capacity or with new hash functions")
+    public static final class Resize extends Event
+    {
+        @Label("Set Class")
+        public Class<?> setClass;
+        
+        @Label("Trigger")
+        @Description("Reason for rehashing (see HashingStatistics.RehashCause)")
+        public String trigger;
+        
+        @Label("Old Capacity")
+        @Description("Number of cells before rehashing")
+        public long oldCapacity;
+        
+        @Label("New Capacity")
+        @Description("Number of cells after rehashing")
+        public long newCapacity;
+        
+        @Label("Elements")
+        @Description("Number of elements in the table after rehashing")
+        public long size;
+    }
+    
+    /**
+     * Insertion with a long eviction chain (cuckoo hashing) 
+     * or probe sequence (linear probing). 
+     */
+    @Name("koekoeke.LongInsertion")
+    @Label("Long Hash Table Insertion")
+    @Category({"Hashing"})
+    @Description("Insertion whose displacement exceeded the threshold")
+    @StackTrace(true)
+    public static final class LongInsertion extends Event
+    {
+        @Label("Set Class")
+        public Class<?> setClass;
+        
+        @Label("Displacement")
+        @Description("Number of evictions or probes")
+        public int displacement;
+        
+        @Label("Capacity")
+        @Description("Number of cells")
+        public long capacity;
+        
+        @Label("Elements")
+        public long size;
+        
+        @Label("Failed")
+        @Description("Whether the insertion ended in a rehash")
+        public boolean failed;
+    }
+    
+    private static final EventType LONG_INSERTION_TYPE = EventType.getEventType(LongInsertion.class);
+    
+    /**
+     * Whether {@link LongInsertion} events are recorded now. 
+     * 
+     * @return false when no running recording enables the event
+     */
+    public static boolean isLongInsertionEnabled()
+    {
+        return LONG_INSERTION_TYPE.isEnabled();
+    }
+    
+    /**
+     * Commits an insertion event, if enabled.
+     * 
+     * @param set_class the table's class
+     * @param displacement number of evictions or probes; the caller checks the threshold
+     * @param capacity number of cells 
+     * @param size number of elements
+     * @param failed whether the element could not be placed
+     */
+    public static void longInsertion(Class<?> set_class, int displacement, long capacity, long size, boolean failed)
+    {
+        LongInsertion event = new LongInsertion();
+        if (event.shouldCommit())
+        {
+            event.setClass = set_class;
+            event.displacement = displacement;
+            event.capacity = capacity;
+            event.size = size;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+}
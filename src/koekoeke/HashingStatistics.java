@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for the behavior of a hash table: rehashes by cause, time spent 
+ * in rehashing, probe lengths in searches, and eviction chain lengths 
+ * in cuckoo insertions. Collection is opt-in: the tables keep a null reference
+ * when disabled, and check it before recording. 
+ * 
+ * Counters are updated by the thread using the table without synchronization; 
+ * readers in other threads (such as a JMX client) may see slightly stale values. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class HashingStatistics implements HashingStatisticsMBean
+{
+    /**
+     * Reason for reallocating the table.
+     */
+    public enum RehashCause
+    {
+        /**
+         * Load factor reached the maximum. 
+         */
+        GROWTH,
+        /**
+         * Load factor dropped below the minimum.
+         */
+        SHRINK,
+        /**
+         * Insertion did not find a place within the allowed number of evictions.
+         */
+        FAILED_INSERT,
+        /**
+         * Too many insertions since the last rehash.
+         */
+        INSERTION_LIMIT
+    }
+    
+    /**
+     * Histograms have exact counts for lengths below this value, and 
+     * one bin for all longer ones. 
+     */
+    public static final int HISTOGRAM_SIZE = 64;
+    
+    private final long[] rehash_counts = new long[RehashCause.values().length];
+    private long rehash_nanos;
+    
+    private final long[] probe_histogram = new long[HISTOGRAM_SIZE+1];
+    private long probe_count;
+    private long probe_total;
+    private int probe_max;
+    
+    private final long[] eviction_histogram = new long[HISTOGRAM_SIZE+1];
+    private long insertion_count;
+    private long eviction_total;
+    private int eviction_max;
+    
+    /**
+     * Records a completed rehash.
+     * 
+     * @param cause why the table was reallocated
+     * @param nanos time spent in rehashing
+     */
+    public void recordRehash(RehashCause cause, long nanos)
+    {
+        rehash_counts[cause.ordinal()]++;
+        rehash_nanos += nanos;
+    }
+    
+    /**
+     * Records a search.
+     * 
+     * @param num_probes number of table cells examined 
+     */
+    public void recordProbeLength(int num_probes)
+    {
+        probe_histogram[Math.min(num_probes, HISTOGRAM_SIZE)]++;
+        probe_count++;
+        probe_total += num_probes;
+        if (num_probes > probe_max) probe_max = num_probes;
+    }
+    
+    /**
+     * Records an insertion, also one that failed and ended in a rehash. 
+     * 
+     * @param num_evictions number of elements moved out of their cell by the insertion
+     */
+    public void recordEvictionChain(int num_evictions)
+    {
+        eviction_histogram[Math.min(num_evictions, HISTOGRAM_SIZE)]++;
+        insertion_count++;
+        eviction_total += num_evictions;
+        if (num_evictions > eviction_max) eviction_max = num_evictions;
+    }
+    
+    /**
+     * Number of rehashes with a given cause.
+     * 
+     * @param cause 
+     * @return count since creation or last reset
+     */
+    public long getRehashCount(RehashCause cause)
+    {
+        return rehash_counts[cause.ordinal()];
+    }
+    
+    @Override
+    public long getRehashCount()
+    {
+        long c = 0L;
+        for (long n: rehash_counts) c += n;
+        return c;
+    }
+
+    @Override
+    public long getGrowthRehashCount()
+    {
+        return getRehashCount(RehashCause.GROWTH);
+    }
+
+    @Override
+    public long getShrinkRehashCount()
+    {
+        return getRehashCount(RehashCause.SHRINK);
+    }
+
+    @Override
+    public long getFailedInsertRehashCount()
+    {
+        return getRehashCount(RehashCause.FAILED_INSERT);
+    }
+
+    @Override
+    public long getInsertionLimitRehashCount()
+    {
+        return getRehashCount(RehashCause.INSERTION_LIMIT);
+    }
+
+    @Override
+    public long getRehashTimeNanos()
+    {
+        return rehash_nanos;
+    }
+
+    @Override
+    public long getProbeCount()
+    {
+        return probe_count;
+    }
+
+    @Override
+    public double getMeanProbeLength()
+    {
+        return probe_count == 0L ? 0.0 : probe_total / ((double) probe_count);
+    }
+
+    @Override
+    public int getMaxProbeLength()
+    {
+        return probe_max;
+    }
+
+    /**
+     * Distribution of probe lengths.
+     * 
+     * @return a copy of the histogram: number of searches by probe length, the last bin counting all lengths &ge;{@link #HISTOGRAM_SIZE}
+     */
+    @Override
+    public long[] getProbeLengthHistogram()
+    {
+        return probe_histogram.clone();
+    }
+
+    @Override
+    public long getInsertionCount()
+    {
+        return insertion_count;
+    }
+
+    @Override
+    public double getMeanEvictionChainLength()
+    {
+        return insertion_count == 0L ? 0.0 : eviction_total / ((double) insertion_count);
+    }
+
+    @Override
+    public int getMaxEvictionChainLength()
+    {
+        return eviction_max;
+    }
+
+    /**
+     * Distribution of eviction chain lengths.
+     * 
+     * @return a copy of the histogram: number of insertions by evictions, the last bin counting all lengths &ge;{@link #HISTOGRAM_SIZE}
+     */
+    @Override
+    public long[] getEvictionChainHistogram()
+    {
+        return eviction_histogram.clone();
+    }
+
+    /**
+     * Sets all counters to 0.
+     */
+    @Override
+    public void reset()
+    {
+        Arrays.fill(rehash_counts, 0L);
+        rehash_nanos = 0L;
+        Arrays.fill(probe_histogram, 0L);
+        probe_count = probe_total = 0L;
+        probe_max = 0;
+        Arrays.fill(eviction_histogram, 0L);
+        insertion_count = eviction_total = 0L;
+        eviction_max = 0;
+    }
+    
+    /**
+     * Registers these statistics with the platform MBean server.
+     * 
+     * @param name distinguishes the monitored table 
+     * @return the name under which the bean is registered  
+     * @throws JMException if the registration fails (e.g., name already in use)
+     */
+    public ObjectName registerMBean(String name) throws JMException
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName object_name = new ObjectName("koekoeke:type=HashingStatistics,name="+ObjectName.quote(name));
+        server.registerMBean(this, object_name);
+        return object_name;
+    }
+    
+    /**
+     * Summary for printing.
+     * 
+     * @return rehash counts, mean and maximum probe and eviction chain lengths
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("rehash ").append(getRehashCount());
+        for (RehashCause cause: RehashCause.values())
+            sb.append(" ").append(cause.name().toLowerCase()).append("=").append(getRehashCount(cause));
+        sb.append("; rehash time ").append(rehash_nanos).append(" ns");
+        sb.append("; probes mean ").append(getMeanProbeLength()).append(" max ").append(probe_max);
+        sb.append("; evictions mean ").append(getMeanEvictionChainLength()).append(" max ").append(eviction_max);
+        return sb.toString();
+    }
+}
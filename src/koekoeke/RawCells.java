@@ -0,0 +1,50 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+/**
+ * Direct access to the backing arrays of a hash table, for 
+ * bulk operations that scan the cells without an iterator. 
+ * Every element of the set appears in exactly one cell; all 
+ * other cells hold the {@link #emptyCell() } marker.
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public interface RawCells 
+{
+    /**
+     * Backing arrays of the table. Callers must not modify them, 
+     * and must not use them after the set is modified.  
+     * 
+     * @return the arrays holding the elements (not copies)
+     */
+    Object[][] cellArrays();
+    
+    /**
+     * Content of unoccupied cells. 
+     * 
+     * @return marker object, compared by reference (may be null)
+     */
+    Object emptyCell();
+}
@@ -0,0 +1,518 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Set with 64-bit hashing over fixed-size pages, for billions of elements. 
+ * The structure is extendible hashing [Fagin, Nievergelt, Pippenger and Strong, TODS 1979]: 
+ * a directory of 2<sup><var>G</var></sup> page references is indexed by the 
+ * top <var>G</var> (global depth) bits of the hash value, and a page with local depth <var>L</var>&le;<var>G</var>
+ * is shared by 2<sup><var>G</var>-<var>L</var></sup> consecutive directory entries. 
+ * Every page is a linear probing table of {@value #PAGE_SLOTS} cells indexed by the low bits of the hash value. 
+ * A page that gets too full is split in two by the next hash bit; 
+ * only the directory (page references) is doubled when a page's local depth 
+ * reaches the global depth. There is no large array copy at any time; 
+ * the largest array is the directory, with one reference per {@value #PAGE_SLOTS}/2 elements or so. 
+ * 
+ * Hash values are 64 bits wide: {@link Long} and {@link String} keys get 64-bit hashes from their content, 
+ * other keys have their 32-bit {@link Object#hashCode()} scrambled into 64 bits. 
+ * Elements whose hash values agree in all bits that a split could use 
+ * (for instance, keys with equal hash codes) cannot be separated: their page 
+ * gets a chain of overflow pages instead of a split. 
+ * Deletion is supported by backward shifting within a page; pages are not merged. 
+ * Null elements are not supported. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class SegmentedHashSet extends AbstractSet<Object> implements Set<Object>, MemoryFootprint, RawCells
+{
+    /**
+     * Bits of cell index in a page.
+     */
+    private static final int PAGE_BITS = 12;
+    /**
+     * Number of cells in a page.
+     */
+    private static final int PAGE_SLOTS = 1 << PAGE_BITS;
+    /**
+     * A page takes at most this many elements; when it and its overflow pages are all 
+     * filled, the page is split.
+     */
+    private static final int PAGE_SPLIT_SIZE = (int) (0.75 * PAGE_SLOTS);
+    /**
+     * Maximum global depth: the directory is a Java array. 
+     */
+    private static final int MAX_GLOBAL_DEPTH = 30;
+    
+    public SegmentedHashSet()
+    {
+        this.global_depth = 0;
+        this.directory = new Page[]{new Page(0)};
+    }
+    
+    /**
+     * Instantiation with enough pages for an expected number of elements.
+     * 
+     * @param expected_size number of elements to be inserted
+     */
+    public SegmentedHashSet(long expected_size)
+    {
+        int depth = 0;
+        while (depth < MAX_GLOBAL_DEPTH && ((long) PAGE_SPLIT_SIZE / 2L << depth) < expected_size) depth++;
+        this.global_depth = depth;
+        this.directory = new Page[1 << depth];
+        for (int i = 0; i < directory.length; i++)
+            directory[i] = new Page(depth);
+    }
+    
+    private int global_depth;
+    private Page[] directory;
+    private long size = 0L;
+    /**
+     * Statistics collector; null when disabled.
+     */
+    private HashingStatistics statistics = null;
+    
+    /**
+     * Starts collecting statistics about page splits (as growth rehashes) and probe lengths.
+     * 
+     * @return the statistics collector (same as before if already enabled)
+     */
+    public HashingStatistics enableStatistics()
+    {
+        if (statistics == null)
+            statistics = new HashingStatistics();
+        return statistics;
+    }
+    
+    /**
+     * Stops collecting statistics.
+     */
+    public void disableStatistics()
+    {
+        statistics = null;
+    }
+    
+    /**
+     * Current statistics collector.
+     * 
+     * @return null if statistics are disabled
+     */
+    public HashingStatistics getStatistics()
+    {
+        return statistics;
+    }
+    
+    /**
+     * 64-bit scrambling (MurmurHash3 finalizer).
+     */
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    /**
+     * 64-bit hash value of a key.
+     * 
+     * @param key not null
+     * @return scrambled hash 
+     */
+    static long hash64(Object key)
+    {
+        if (key instanceof Long)
+            return mix((Long) key);
+        if (key instanceof String)
+        {
+            String s = (String) key;
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < s.length(); i++)
+                h = (h ^ s.charAt(i)) * 0x100000001b3L; // FNV-1a
+            return mix(h);
+        }
+        return mix(key.hashCode() & 0xffffffffL);
+    }
+    
+    /**
+     * Linear probing table of {@value #PAGE_SLOTS} cells. 
+     */
+    private static final class Page
+    {
+        Page(int local_depth)
+        {
+            this.local_depth = local_depth;
+            this.cells = new Object[PAGE_SLOTS];
+        }
+        
+        private final int local_depth;
+        private final Object[] cells;
+        private int n = 0;
+        /**
+         * Next page in the overflow chain, with the same local depth; null if none.
+         */
+        private Page overflow = null;
+        
+        /**
+         * Search for an element.
+         * 
+         * @param key query
+         * @param h hash of the key
+         * @return index where found, or where it should be placed on insertion
+         */
+        int search(Object key, long h)
+        {
+            int i = (int) h & (PAGE_SLOTS - 1);
+            Object x;
+            while ((x = cells[i]) != null && !x.equals(key))
+                i = (i + 1) & (PAGE_SLOTS - 1);
+            return i;
+        }
+        
+        /**
+         * Puts an element that is not in the page yet.
+         */
+        void insertNew(Object key, long h)
+        {
+            int i = (int) h & (PAGE_SLOTS - 1);
+            while (cells[i] != null)
+                i = (i + 1) & (PAGE_SLOTS - 1);
+            cells[i] = key;
+            n++;
+        }
+        
+        /**
+         * Empties a cell, and shifts back the elements of the run that follow 
+         * so that no search is cut short (Knuth's Algorithm R).
+         */
+        void removeAt(int i)
+        {
+            int hole = i;
+            int j = i;
+            while (true)
+            {
+                j = (j + 1) & (PAGE_SLOTS - 1);
+                Object x = cells[j];
+                if (x == null) break;
+                int home = (int) hash64(x) & (PAGE_SLOTS - 1);
+                // x can move into the hole if its home is not cyclically in (hole, j]
+                if (((j - home) & (PAGE_SLOTS - 1)) >= ((j - hole) & (PAGE_SLOTS - 1)))
+                {
+                    cells[hole] = x;
+                    hole = j;
+                }
+            }
+            cells[hole] = null;
+            n--;
+        }
+        
+        /**
+         * Puts an element that is not in the chain yet into the first page 
+         * of the chain that has room, appending an overflow page if necessary.
+         */
+        void appendNew(Object key, long h)
+        {
+            Page p = this;
+            while (p.n >= PAGE_SPLIT_SIZE && p.overflow != null) p = p.overflow;
+            if (p.n >= PAGE_SPLIT_SIZE)
+                p = p.overflow = new Page(local_depth);
+            p.insertNew(key, h);
+        }
+        
+        /**
+         * Whether a split could separate the elements of the chain and a new element. 
+         * 
+         * @param h hash of the new element
+         * @return false if all hash values agree in the top {@link #MAX_GLOBAL_DEPTH} bits
+         */
+        boolean isSeparable(long h)
+        {
+            long diff = 0L;
+            for (Page p = this; p != null; p = p.overflow)
+                for (Object x: p.cells)
+                    if (x != null) diff |= hash64(x) ^ h;
+            return Long.numberOfLeadingZeros(diff) < MAX_GLOBAL_DEPTH;
+        }
+    }
+    
+    /**
+     * Page for a hash value.
+     */
+    private Page page(long h)
+    {
+        return directory[global_depth == 0 ? 0 : (int) (h >>> (64 - global_depth))];
+    }
+    
+    @Override
+    public int size()
+    {
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Number of elements, which may exceed the range of <code>int</code>.
+     * 
+     * @return exact number of elements
+     */
+    public long longSize()
+    {
+        return size;
+    }
+    
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0L;
+    }
+    
+    private void recordProbeLength(long h, int i)
+    {
+        statistics.recordProbeLength(1 + ((i - (int) h) & (PAGE_SLOTS - 1)));
+    }
+    
+    @Override
+    public boolean contains(Object o)
+    {
+        if (o == null) return false;
+        return find(o, hash64(o));
+    }
+    
+    /**
+     * Search along an overflow chain.
+     * 
+     * @param o query, not null
+     * @param h hash of the query
+     * @return whether the element is in the set
+     */
+    private boolean find(Object o, long h)
+    {
+        for (Page page = page(h); page != null; page = page.overflow)
+        {
+            int i = page.search(o, h);
+            if (page.cells[i] != null || page.overflow == null)
+            {
+                if (statistics != null) recordProbeLength(h, i);
+                return page.cells[i] != null;
+            }
+        }
+        return false; // not reached 
+    }
+    
+    @Override
+    public boolean add(Object o)
+    {
+        if (o == null) throw new UnsupportedOperationException("Cannot add null element in this implementation.");
+        long h = hash64(o);
+        if (find(o, h)) return false;
+        while (true)
+        {
+            Page page = page(h);
+            Page last = page;
+            while (last.n >= PAGE_SPLIT_SIZE && last.overflow != null) last = last.overflow;
+            if (last.n < PAGE_SPLIT_SIZE)
+            {
+                last.insertNew(o, h);
+                break;
+            }
+            if (!page.isSeparable(h))
+            {
+                last.overflow = new Page(page.local_depth);
+                last.overflow.insertNew(o, h);
+                break;
+            }
+            split(page, h); // then try again: the new element's page may still be full
+        }
+        size++;
+        return true;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        if (o == null) return false;
+        long h = hash64(o);
+        Page previous = null;
+        for (Page page = page(h); page != null; previous = page, page = page.overflow)
+        {
+            int i = page.search(o, h);
+            if (page.cells[i] != null)
+            {
+                page.removeAt(i);
+                if (page.n == 0 && previous != null) 
+                    previous.overflow = page.overflow; // drop empty overflow page
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    @Override
+    public void clear()
+    {
+        this.global_depth = 0;
+        this.directory = new Page[]{new Page(0)};
+        this.size = 0L;
+    }
+    
+    /**
+     * Splits a page (with its overflow chain) into two by the next hash bit, doubling the directory first if necessary.
+     * The caller makes sure that the page's local depth is below {@link #MAX_GLOBAL_DEPTH}. 
+     * 
+     * @param page full page
+     * @param h hash value of an element in the page, for locating it in the directory
+     */
+    private void split(Page page, long h)
+    {
+        long T0 = (statistics == null ? 0L : System.nanoTime());
+        assert page.local_depth < MAX_GLOBAL_DEPTH;
+        if (page.local_depth == global_depth)
+        {
+            Page[] doubled = new Page[2 * directory.length];
+            for (int i = 0; i < directory.length; i++)
+                doubled[2*i] = doubled[2*i+1] = directory[i];
+            directory = doubled;
+            global_depth++;
+        }
+        
+        int depth = page.local_depth + 1;
+        Page low = new Page(depth);
+        Page high = new Page(depth);
+        long bit = 1L << (64 - depth);
+        for (Page p = page; p != null; p = p.overflow)
+            for (Object x: p.cells)
+                if (x != null)
+                {
+                    long hx = hash64(x);
+                    ((hx & bit) == 0L ? low : high).appendNew(x, hx);
+                }
+        // the page's directory entries form a range of 2^(G-L) entries
+        int range = 1 << (global_depth - page.local_depth);
+        int first = (int) (h >>> (64 - global_depth)) & -range;
+        for (int i = 0; i < range; i++)
+            directory[first + i] = (i < range / 2 ? low : high);
+        if (statistics != null)
+            statistics.recordRehash(HashingStatistics.RehashCause.GROWTH, System.nanoTime()-T0);
+    }
+    
+    /**
+     * Pages, each once, in directory order, with overflow pages after their chain's first page.
+     * 
+     * @return distinct pages
+     */
+    private Page[] pages()
+    {
+        int num_pages = 0;
+        for (int i = 0; i < directory.length; i += 1 << (global_depth - directory[i].local_depth))
+            for (Page page = directory[i]; page != null; page = page.overflow)
+                num_pages++;
+        Page[] pages = new Page[num_pages];
+        int p = 0;
+        for (int i = 0; i < directory.length; i += 1 << (global_depth - directory[i].local_depth))
+            for (Page page = directory[i]; page != null; page = page.overflow)
+                pages[p++] = page;
+        return pages;
+    }
+    
+    @Override
+    public Object[][] cellArrays()
+    {
+        Page[] pages = pages();
+        Object[][] cells = new Object[pages.length][];
+        for (int p = 0; p < pages.length; p++)
+            cells[p] = pages[p].cells;
+        return cells;
+    }
+    
+    @Override
+    public Object emptyCell()
+    {
+        return null;
+    }
+    
+    /**
+     * Memory usage of the directory and the pages, with key sizes estimated from a sample.
+     * 
+     * @return footprint of the set
+     */
+    @Override
+    public Footprint footprint()
+    {
+        long num_pages = pages().length;
+        long array_bytes = Footprint.referenceArrayBytes(directory.length) 
+                + num_pages * Footprint.referenceArrayBytes(PAGE_SLOTS);
+        long key_bytes = Footprint.sampleKeyBytes(iterator(), size, Footprint.DEFAULT_KEY_SAMPLES);
+        return new Footprint(array_bytes, key_bytes, size, num_pages * PAGE_SLOTS);
+    }
+    
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private final Page[] pages = pages();
+            private int page_idx = 0;
+            private int cell_idx = -1;
+            {
+                advance();
+            }
+            
+            private void advance()
+            {
+                cell_idx++;
+                while (page_idx < pages.length)
+                {
+                    Object[] cells = pages[page_idx].cells;
+                    while (cell_idx < cells.length && cells[cell_idx] == null) cell_idx++;
+                    if (cell_idx < cells.length) return;
+                    page_idx++;
+                    cell_idx = 0;
+                }
+            }
+            
+            @Override
+            public boolean hasNext()
+            {
+                return page_idx < pages.length;
+            }
+            
+            @Override
+            public Object next()
+            {
+                if (!hasNext()) throw new NoSuchElementException();
+                Object x = pages[page_idx].cells[cell_idx];
+                advance();
+                return x;
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Union, intersection and difference of sets. When an operand 
+ * implements {@link RawCells}, its arrays are scanned directly instead 
+ * of going through an iterator. The results are {@link CuckooHashingSet}s, 
+ * allocated at their final capacity. Intersection and difference can 
+ * scan the arrays in parallel by cell ranges: the operands must not be modified 
+ * meanwhile, and their searches must be safe for concurrent use 
+ * (true for our engines with statistics disabled). 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public final class SetAlgebra 
+{
+    private SetAlgebra(){}
+    
+    /**
+     * Parallel scans split the cells into ranges of about this size.
+     */
+    private static final int PARALLEL_RANGE = 1 << 14;
+    
+    /**
+     * Callback for cell scans. 
+     */
+    interface ElementVisitor
+    {
+        void visit(Object x);
+    }
+    
+    /**
+     * Calls the visitor for every element, scanning the cells if possible. 
+     * 
+     * @param elements collection
+     * @param visitor called once for each element
+     */
+    static void forEachElement(Collection<?> elements, ElementVisitor visitor)
+    {
+        if (elements instanceof RawCells)
+        {
+            RawCells raw = (RawCells) elements;
+            Object empty = raw.emptyCell();
+            for (Object[] cells: raw.cellArrays())
+                for (Object x: cells)
+                    if (x != empty) visitor.visit(x);
+        } else
+        {
+            for (Object x: elements)
+                visitor.visit(x);
+        }
+    }
+    
+    /**
+     * Elements of a collection, in a list.
+     * 
+     * @param elements
+     * @return new list
+     */
+    static List<Object> toList(Collection<?> elements)
+    {
+        final List<Object> list = new ArrayList<>(elements.size());
+        forEachElement(elements, new ElementVisitor()
+        {
+            @Override
+            public void visit(Object x)
+            {
+                list.add(x);
+            }
+        });
+        return list;
+    }
+    
+    /**
+     * Union of two sets.
+     * 
+     * @param A first set
+     * @param B second set
+     * @return new set with the elements of both
+     */
+    public static CuckooHashingSet union(Set<?> A, Set<?> B)
+    {
+        final CuckooHashingSet result = CuckooHashingSet.withExpectedSize(A.size() + B.size());
+        ElementVisitor adder = new ElementVisitor()
+        {
+            @Override
+            public void visit(Object x)
+            {
+                result.add(x);
+            }
+        };
+        forEachElement(A, adder);
+        forEachElement(B, adder);
+        return result;
+    }
+    
+    /**
+     * Intersection of two sets, scanning the cells of the smaller one 
+     * and searching in the larger one.  
+     * 
+     * @param A first set
+     * @param B second set
+     * @param parallel whether to scan the cells concurrently in the common fork-join pool
+     * @return new set with the common elements
+     */
+    public static CuckooHashingSet intersection(Set<?> A, Set<?> B, boolean parallel)
+    {
+        Set<?> smaller = (A.size() <= B.size() ? A : B);
+        Set<?> larger = (smaller == A ? B : A);
+        CuckooHashingSet result = CuckooHashingSet.withExpectedSize(smaller.size());
+        result.addAllNew(filter(smaller, larger, true, parallel));
+        return result;
+    }
+    
+    /**
+     * Difference of two sets. If the second operand is much smaller, the result is a copy of 
+     * the first one with the elements of the second one removed; otherwise, the cells of the first 
+     * set are scanned and searched in the second one. 
+     * 
+     * @param A the first set
+     * @param B elements to be excluded
+     * @param parallel whether to scan the cells concurrently in the common fork-join pool
+     * @return new set with elements of A that are not in B
+     */
+    public static CuckooHashingSet difference(Set<?> A, Set<?> B, boolean parallel)
+    {
+        if (B.size() < A.size() / 4)
+        {
+            final CuckooHashingSet result = CuckooHashingSet.withExpectedSize(A.size());
+            result.addAllNew(toList(A));
+            forEachElement(B, new ElementVisitor()
+            {
+                @Override
+                public void visit(Object x)
+                {
+                    result.remove(x);
+                }
+            });
+            return result;
+        } else 
+        {
+            List<Object> kept = filter(A, B, false, parallel);
+            CuckooHashingSet result = CuckooHashingSet.withExpectedSize(kept.size());
+            result.addAllNew(kept);
+            return result;
+        }
+    }
+    
+    /**
+     * Elements of a collection that are (or are not) in a set. 
+     * 
+     * @param scanned collection whose elements are tested
+     * @param tester set searched for each element
+     * @param keep_found true for elements in tester, false for those not in tester 
+     * @param parallel whether to scan concurrently (only if scanned implements {@link RawCells})
+     * @return list of selected elements 
+     */
+    static List<Object> filter(Collection<?> scanned, final Set<?> tester, final boolean keep_found, boolean parallel)
+    {
+        if (parallel && scanned instanceof RawCells)
+        {
+            RawCells raw = (RawCells) scanned;
+            List<Object> selected = new ArrayList<>();
+            for (Object[] cells: raw.cellArrays())
+                selected.addAll(ForkJoinPool.commonPool().invoke(new FilterTask(cells, 0, cells.length, raw.emptyCell(), tester, keep_found)));
+            return selected;
+        } else 
+        {
+            final List<Object> selected = new ArrayList<>();
+            forEachElement(scanned, new ElementVisitor()
+            {
+                @Override
+                public void visit(Object x)
+                {
+                    if (tester.contains(x) == keep_found)
+                        selected.add(x);
+                }
+            });
+            return selected;
+        }
+    }
+    
+    /**
+     * Filtering a range of cells, split recursively. Never serialized. 
+     */
+    @SuppressWarnings("serial")
+    private static final class FilterTask extends RecursiveTask<List<Object>>
+    {
+        private final Object[] cells;
+        private final int from;
+        private final int to;
+        private final Object empty;
+        private final Set<?> tester;
+        private final boolean keep_found;
+        
+        FilterTask(Object[] cells, int from, int to, Object empty, Set<?> tester, boolean keep_found)
+        {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+            this.empty = empty;
+            this.tester = tester;
+            this.keep_found = keep_found;
+        }
+
+        @Override
+        protected List<Object> compute()
+        {
+            if (to - from <= PARALLEL_RANGE)
+            {
+                List<Object> selected = new ArrayList<>();
+                for (int i = from; i < to; i++)
+                {
+                    Object x = cells[i];
+                    if (x != empty && tester.contains(x) == keep_found)
+                        selected.add(x);
+                }
+                return selected;
+            } else
+            {
+                int mid = (from + to) >>> 1;
+                FilterTask left = new FilterTask(cells, from, mid, empty, tester, keep_found);
+                FilterTask right = new FilterTask(cells, mid, to, empty, tester, keep_found);
+                left.fork();
+                List<Object> selected = right.compute();
+                List<Object> left_selected = left.join();
+                left_selected.addAll(selected);
+                return left_selected;
+            }
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package koekoeke;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Set partitioned into independent shards by the high bits of a scrambled hash code. 
+ * Each shard is a separate set (by default, a {@link CuckooHashingSet}) 
+ * that grows and shrinks on its own, so a rehash touches only a fraction of the elements. 
+ * Single-element operations lock only the shard of the element, so threads 
+ * working on different shards do not wait for each other. 
+ * Bulk operations process the shards in parallel on a fork-join pool. 
+ * 
+ * Iteration is not synchronized: as with the engines, the iterator 
+ * may fail if the set is modified while iterating. 
+ * Instances are created by the static factory methods; the set reports its 
+ * {@link MemoryFootprint} when all shards do. 
+ * 
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class ShardedSet extends AbstractSet<Object> implements Set<Object>
+{
+    private static final int DEFAULT_SHARD_COUNT = 64;
+    
+    private final Set<Object>[] shards;
+    /**
+     * Shift for computing the shard index from a scrambled hash code.
+     */
+    private final int shard_shift;
+    private final ForkJoinPool pool;
+
+    /**
+     * Instantiation with given shards. 
+     * 
+     * @param shards empty sets; the length is a power of 2
+     * @param pool executes the bulk operations
+     */
+    private ShardedSet(Set<Object>[] shards, ForkJoinPool pool)
+    {
+        int b = 0;
+        while ((1 << b) < shards.length) b++;
+        this.shards = shards;
+        this.shard_shift = 32 - b;
+        this.pool = pool;
+    }
+    
+    /**
+     * Instantiation with {@link CuckooHashingSet} shards, 
+     * using the common fork-join pool. 
+     * 
+     * @param num_shards rounded up to a power of 2
+     * @return empty set, implementing {@link MemoryFootprint}
+     */
+    public static ShardedSet withCuckooShards(int num_shards)
+    {
+        return withShards(num_shards, new Supplier<Set<Object>>()
+        {
+            @Override
+            public Set<Object> get()
+            {
+                return new CuckooHashingSet();
+            }
+        }, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Instantiation with {@link CuckooHashingSet} shards and the default shard count, 
+     * using the common fork-join pool. 
+     * 
+     * @return empty set, implementing {@link MemoryFootprint}
+     */
+    public static ShardedSet withCuckooShards()
+    {
+        return withCuckooShards(DEFAULT_SHARD_COUNT);
+    }
+    
+    /**
+     * Instantiation with arbitrary shard implementation. 
+     * The set implements {@link MemoryFootprint} only if the shards do. 
+     * 
+     * @param num_shards rounded up to a power of 2
+     * @param shard_factory creates the empty shards
+     * @param pool executes the bulk operations
+     * @return empty set
+     */
+    @SuppressWarnings("unchecked")
+    public static ShardedSet withShards(int num_shards, Supplier<? extends Set<Object>> shard_factory, ForkJoinPool pool)
+    {
+        int b = 0;
+        while ((1 << b) < num_shards) b++;
+        Set<Object>[] shards = (Set<Object>[]) new Set<?>[1 << b];
+        boolean footprints = true;
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = shard_factory.get();
+            footprints = footprints && (shards[i] instanceof MemoryFootprint);
+        }
+        return footprints ? new Measured(shards, pool) : new ShardedSet(shards, pool);
+    }
+    
+    /**
+     * Sharded set whose shards all report their memory usage.
+     */
+    private static final class Measured extends ShardedSet implements MemoryFootprint
+    {
+        private Measured(Set<Object>[] shards, ForkJoinPool pool)
+        {
+            super(shards, pool);
+        }
+        
+        @Override
+        public Footprint footprint()
+        {
+            Set<Object>[] shards = super.shards;
+            long array_bytes = Footprint.referenceArrayBytes(shards.length);
+            long key_bytes = 0L;
+            long occupied = 0L;
+            long total = 0L;
+            for (Set<Object> shard: shards)
+            {
+                Footprint F;
+                synchronized (shard)
+                {
+                    F = ((MemoryFootprint) shard).footprint();
+                }
+                array_bytes += F.array_bytes;
+                key_bytes += F.key_bytes;
+                occupied += F.occupied_slots;
+                total += F.total_slots;
+            }
+            return new Footprint(array_bytes, key_bytes, occupied, total);
+        }
+    }
+    
+    /**
+     * Number of shards.
+     * 
+     * @return a power of 2
+     */
+    public int shardCount()
+    {
+        return shards.length;
+    }
+    
+    /**
+     * Shard index for an element. The hash code is scrambled first (MurmurHash3 finalizer), 
+     * so that the shard index is independent of the engines' own hash functions 
+     * of the hash code.
+     * 
+     * @param x null OK
+     * @return index into {@link #shards}
+     */
+    private int shardIndex(Object x)
+    {
+        if (x == null) return 0;
+        int h = x.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (int) ((h & 0xffffffffL) >>> shard_shift);
+    }
+    
+    @Override
+    public boolean add(Object x)
+    {
+        Set<Object> shard = shards[shardIndex(x)];
+        synchronized (shard)
+        {
+            return shard.add(x);
+        }
+    }
+    
+    @Override
+    public boolean contains(Object x)
+    {
+        Set<Object> shard = shards[shardIndex(x)];
+        synchronized (shard)
+        {
+            return shard.contains(x);
+        }
+    }
+    
+    @Override
+    public boolean remove(Object x)
+    {
+        Set<Object> shard = shards[shardIndex(x)];
+        synchronized (shard)
+        {
+            return shard.remove(x);
+        }
+    }
+    
+    @Override
+    public int size()
+    {
+        int n = 0;
+        for (Set<Object> shard: shards)
+            synchronized (shard)
+            {
+                n += shard.size();
+            }
+        return n;
+    }
+    
+    @Override
+    public void clear()
+    {
+        for (Set<Object> shard: shards)
+            synchronized (shard)
+            {
+                shard.clear();
+            }
+    }
+    
+    /**
+     * Splits a collection by shards. 
+     * 
+     * @param elements
+     * @return list of elements for each shard
+     */
+    private List<List<Object>> partition(Collection<?> elements)
+    {
+        List<List<Object>> parts = new ArrayList<>(shards.length);
+        int expected_size = elements.size() / shards.length + 1;
+        for (int i = 0; i < shards.length; i++)
+            parts.add(new ArrayList<>(expected_size));
+        for (Object x: elements)
+            parts.get(shardIndex(x)).add(x);
+        return parts;
+    }
+    
+    /**
+     * Runs one task per shard in the pool and adds up the results. 
+     * 
+     * @param tasks shard tasks
+     * @return sum of task results
+     */
+    private int invokeAll(List<Callable<Integer>> tasks)
+    {
+        List<ForkJoinTask<Integer>> submitted = new ArrayList<>(tasks.size());
+        for (Callable<Integer> task: tasks)
+            submitted.add(pool.submit(task));
+        int sum = 0;
+        for (ForkJoinTask<Integer> task: submitted)
+            sum += task.join();
+        return sum;
+    }
+    
+    /**
+     * Parallel insertion: the elements are partitioned by shards, and 
+     * the shards are filled concurrently. 
+     * 
+     * @param elements new elements
+     * @return number of elements that were not yet in the set
+     */
+    public int addAllParallel(Collection<?> elements)
+    {
+        List<List<Object>> parts = partition(elements);
+        List<Callable<Integer>> tasks = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+        {
+            final Set<Object> shard = shards[i];
+            final List<Object> part = parts.get(i);
+            if (part.isEmpty()) continue;
+            tasks.add(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    int num_added = 0;
+                    synchronized (shard)
+                    {
+                        for (Object x: part)
+                            if (shard.add(x)) num_added++;
+                    }
+                    return num_added;
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+    
+    /**
+     * Parallel deletion: the elements are partitioned by shards, and 
+     * removed from the shards concurrently. 
+     * 
+     * @param elements removed elements
+     * @return number of elements that were in the set
+     */
+    public int removeAllParallel(Collection<?> elements)
+    {
+        List<List<Object>> parts = partition(elements);
+        List<Callable<Integer>> tasks = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; i++)
+        {
+            final Set<Object> shard = shards[i];
+            final List<Object> part = parts.get(i);
+            if (part.isEmpty()) continue;
+            tasks.add(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    int num_removed = 0;
+                    synchronized (shard)
+                    {
+                        for (Object x: part)
+                            if (shard.remove(x)) num_removed++;
+                    }
+                    return num_removed;
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+    
+    /**
+     * Parallel iteration: the action is called concurrently for elements of 
+     * different shards, while each shard is locked. The action 
+     * must be thread-safe, and must not modify this set. 
+     * 
+     * @param action called once for each element
+     */
+    public void forEachParallel(final Consumer<Object> action)
+    {
+        List<Callable<Integer>> tasks = new ArrayList<>(shards.length);
+        for (final Set<Object> shard: shards)
+        {
+            tasks.add(new Callable<Integer>()
+            {
+                @Override
+                public Integer call()
+                {
+                    synchronized (shard)
+                    {
+                        for (Object x: shard)
+                            action.accept(x);
+                        return shard.size();
+                    }
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+    
+    /**
+     * Iterator over the shards in order.
+     * 
+     * @return iterator (not synchronized)
+     */
+    @Override
+    public Iterator<Object> iterator()
+    {
+        return new Iterator<Object>()
+        {
+            private int shard_idx = 0;
+            private Iterator<Object> shard_iter = shards[0].iterator();
+            
+            private void forwardToNext()
+            {
+                while (!shard_iter.hasNext() && shard_idx + 1 < shards.length)
+                    shard_iter = shards[++shard_idx].iterator();
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                forwardToNext();
+                return shard_iter.hasNext();
+            }
+
+            @Override
+            public Object next()
+            {
+                forwardToNext();
+                if (!shard_iter.hasNext()) throw new NoSuchElementException();
+                return shard_iter.next();
+            }
+        };
+    }
+}